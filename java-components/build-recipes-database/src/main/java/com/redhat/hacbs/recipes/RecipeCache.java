@@ -0,0 +1,51 @@
+package com.redhat.hacbs.recipes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of parsed recipe files, shared by everything that looks up recipes.
+ * <p>
+ * Entries are keyed by path, and are only used while the modification time and size of the file are unchanged. As a
+ * checkout can replace a file without changing either, the recipe repository also invalidates everything under its
+ * directory when it pulls a new commit.
+ * <p>
+ * The parsed objects are shared, so must not be modified. Anything that needs to modify a recipe should use
+ * {@link RecipeManager#parse(Path)} instead.
+ */
+public final class RecipeCache {
+
+    public static final RecipeCache INSTANCE = new RecipeCache();
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    <T> T parse(RecipeManager<T> manager, Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        Entry existing = entries.get(key);
+        if (existing != null && existing.manager == manager && existing.lastModified.equals(attributes.lastModifiedTime())
+                && existing.size == attributes.size()) {
+            return (T) existing.value;
+        }
+        T value = manager.parse(key);
+        entries.put(key, new Entry(manager, attributes.lastModifiedTime(), attributes.size(), value));
+        return value;
+    }
+
+    /**
+     * Removes all the entries for files under the given directory
+     */
+    public void invalidate(Path directory) {
+        Path absolute = directory.toAbsolutePath().normalize();
+        entries.keySet().removeIf(p -> p.startsWith(absolute));
+    }
+
+    private record Entry(RecipeManager<?> manager, FileTime lastModified, long size, Object value) {
+    }
+}
@@ -35,6 +35,14 @@ public interface RecipeManager<T> {
         }
     }
 
+    /**
+     * Parses the file, returning the previously parsed instance if the file has not changed since. The result is
+     * shared, so must not be modified.
+     */
+    default T parseCached(Path file) throws IOException {
+        return RecipeCache.INSTANCE.parse(this, file);
+    }
+
     T parse(InputStream in) throws IOException;
 
     void write(T data, OutputStream out) throws IOException;
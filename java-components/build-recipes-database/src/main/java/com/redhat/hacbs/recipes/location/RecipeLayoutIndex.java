@@ -0,0 +1,148 @@
+package com.redhat.hacbs.recipes.location;
+
+import static com.redhat.hacbs.recipes.location.RecipeLayoutManager.ARTIFACT;
+import static com.redhat.hacbs.recipes.location.RecipeLayoutManager.VERSION;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.apache.maven.artifact.versioning.ComparableVersion;
+
+/**
+ * An immutable in memory snapshot of the directory layout of a recipe database, so lookups do not need to touch the
+ * file system.
+ * <p>
+ * Groups and build info directories are keyed by their path, and each group holds its artifact directories. Every
+ * directory that can have {@code _version} overrides keeps them sorted, so resolving a version is a binary search.
+ */
+final class RecipeLayoutIndex {
+
+    private final Map<Path, Group> groups;
+    private final Map<Path, VersionedDirectory> buildInfo;
+
+    private RecipeLayoutIndex(Map<Path, Group> groups, Map<Path, VersionedDirectory> buildInfo) {
+        this.groups = groups;
+        this.buildInfo = buildInfo;
+    }
+
+    static RecipeLayoutIndex build(Path scmInfoDirectory, Path buildInfoDirectory) throws IOException {
+        Map<Path, Group> groups = new HashMap<>();
+        for (Path dir : directories(scmInfoDirectory)) {
+            Map<String, VersionedDirectory> artifacts = new HashMap<>();
+            Path artifactFolder = dir.resolve(ARTIFACT);
+            if (Files.isDirectory(artifactFolder)) {
+                try (Stream<Path> s = Files.list(artifactFolder)) {
+                    for (Path artifact : s.toList()) {
+                        artifacts.put(artifact.getFileName().toString(), VersionedDirectory.read(artifact));
+                    }
+                }
+            }
+            groups.put(dir, new Group(VersionedDirectory.read(dir), Map.copyOf(artifacts)));
+        }
+        Map<Path, VersionedDirectory> buildInfo = new HashMap<>();
+        for (Path dir : directories(buildInfoDirectory)) {
+            buildInfo.put(dir, VersionedDirectory.read(dir));
+        }
+        return new RecipeLayoutIndex(Map.copyOf(groups), Map.copyOf(buildInfo));
+    }
+
+    /**
+     * Returns the group directory, or null if it does not exist
+     */
+    Group group(Path groupPath) {
+        return groups.get(groupPath);
+    }
+
+    /**
+     * Returns the build info directory, or null if it does not exist
+     */
+    VersionedDirectory buildInfo(Path target) {
+        return buildInfo.get(target);
+    }
+
+    /**
+     * All directories under the root, apart from the {@code _artifact} and {@code _version} overrides, which are
+     * read as part of the directory that contains them.
+     */
+    private static List<Path> directories(Path root) throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return result;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = dir.getFileName().toString();
+                if (!dir.equals(root) && (name.equals(ARTIFACT) || name.equals(VERSION))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                result.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    record Group(VersionedDirectory directory, Map<String, VersionedDirectory> artifacts) {
+    }
+
+    /**
+     * A directory and its {@code _version} overrides, sorted from lowest to highest version.
+     */
+    record VersionedDirectory(Path path, ComparableVersion[] versions, Path[] versionPaths) {
+
+        static VersionedDirectory read(Path path) throws IOException {
+            Path versionsDir = path.resolve(VERSION);
+            if (!Files.isDirectory(versionsDir)) {
+                return new VersionedDirectory(path, null, null);
+            }
+            List<Path> entries;
+            try (Stream<Path> s = Files.list(versionsDir)) {
+                entries = s.toList();
+            }
+            Map<Path, ComparableVersion> parsed = new HashMap<>();
+            for (Path entry : entries) {
+                parsed.put(entry, new ComparableVersion(entry.getFileName().toString()));
+            }
+            Path[] versionPaths = entries.stream()
+                    .sorted(Comparator.<Path, ComparableVersion> comparing(parsed::get).thenComparing(Path::getFileName))
+                    .toArray(Path[]::new);
+            ComparableVersion[] versions = Arrays.stream(versionPaths).map(parsed::get)
+                    .toArray(ComparableVersion[]::new);
+            return new VersionedDirectory(path, versions, versionPaths);
+        }
+
+        /**
+         * Returns the lowest version override that is not lower than the requested version
+         */
+        Optional<Path> resolve(String version) {
+            if (versions == null) {
+                return Optional.empty();
+            }
+            ComparableVersion requested = new ComparableVersion(version);
+            int low = 0;
+            int high = versions.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (versions[mid].compareTo(requested) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < versions.length ? Optional.of(versionPaths[low]) : Optional.empty();
+        }
+    }
+}
@@ -10,8 +10,6 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import org.apache.maven.artifact.versioning.ComparableVersion;
-
 import com.redhat.hacbs.recipes.build.AddBuildRecipeRequest;
 
 /**
@@ -31,6 +29,9 @@ import com.redhat.hacbs.recipes.build.AddBuildRecipeRequest;
  * the same)
  * <p>
  * At present this is just the location information.
+ * <p>
+ * The layout of the scm and build info is read into memory the first time it is needed, and re-read on
+ * {@link #update()}, so lookups do not hit the file system. Writes through this class invalidate it.
  */
 public class RecipeLayoutManager implements RecipeDirectory {
 
@@ -43,6 +44,10 @@ public class RecipeLayoutManager implements RecipeDirectory {
     private final Path repositoryInfoDirectory;
     private final Path buildToolInfoDirectory;
     private final Path pluginInfoDirectory;
+    /**
+     * The directory layout of the scm and build info, built on first use and replaced when the recipes are updated
+     */
+    private volatile RecipeLayoutIndex index;
 
     public RecipeLayoutManager(Path baseDirectory) {
         scmInfoDirectory = baseDirectory.resolve(RecipeRepositoryManager.SCM_INFO);
@@ -57,22 +62,22 @@ public class RecipeLayoutManager implements RecipeDirectory {
      */
     public Optional<RecipePathMatch> getArtifactPaths(String groupId, String artifactId, String version) {
         Path groupPath = scmInfoDirectory.resolve(groupId.replace('.', File.separatorChar));
-        Path artifactFolder = groupPath.resolve(ARTIFACT);
-        Path artifactPath = artifactFolder.resolve(artifactId);
-        Path artifactAndVersionPath = null;
-        log.warning("Searching for recipe in " + groupPath);
+        log.fine("Searching for recipe in " + groupPath);
 
-        if (Files.notExists(groupPath)) {
+        RecipeLayoutIndex.Group group = index().group(groupPath);
+        if (group == null) {
             return Optional.empty();
         }
         boolean groupAuthoritative = true;
-        if (Files.exists(artifactPath)) {
-            artifactAndVersionPath = resolveVersion(artifactPath, version).orElse(null);
+        Path artifactPath = null;
+        Path artifactAndVersionPath = null;
+        RecipeLayoutIndex.VersionedDirectory artifact = group.artifacts().get(artifactId);
+        if (artifact != null) {
+            artifactPath = artifact.path();
+            artifactAndVersionPath = artifact.resolve(version).orElse(null);
             groupAuthoritative = false;
-        } else {
-            artifactPath = null;
         }
-        Path versionPath = resolveVersion(groupPath, version).orElse(null);
+        Path versionPath = group.directory().resolve(version).orElse(null);
         if (versionPath != null) {
             groupAuthoritative = false;
         }
@@ -84,10 +89,11 @@ public class RecipeLayoutManager implements RecipeDirectory {
     @Override
     public Optional<Path> getBuildPaths(String scmUri, String version) {
         Path target = buildInfoDirectory.resolve(RecipeGroupManager.normalizeScmUri(scmUri));
-        if (!Files.exists(target)) {
+        RecipeLayoutIndex.VersionedDirectory buildInfo = index().buildInfo(target);
+        if (buildInfo == null) {
             return Optional.empty();
         }
-        return Optional.of(resolveVersion(target, version).orElse(target));
+        return Optional.of(buildInfo.resolve(version).orElse(target));
     }
 
     @Override
@@ -126,30 +132,29 @@ public class RecipeLayoutManager implements RecipeDirectory {
         return Files.isReadable(target) ? Optional.of(target) : Optional.empty();
     }
 
-    private Optional<Path> resolveVersion(Path target, String version) {
-        Path versions = target.resolve(VERSION);
-        if (!Files.exists(versions)) {
-            return Optional.empty();
-        }
-        ComparableVersion requestedVersion = new ComparableVersion(version);
-        ComparableVersion currentVersion = null;
-        Path currentPath = null;
-        try (var s = Files.list(versions)) {
-            var i = s.iterator();
-            while (i.hasNext()) {
-                var path = i.next();
-                ComparableVersion pv = new ComparableVersion(path.getFileName().toString());
-                if (requestedVersion.compareTo(pv) <= 0) {
-                    if (currentVersion == null || pv.compareTo(currentVersion) < 0) {
-                        currentVersion = pv;
-                        currentPath = path;
-                    }
+    /**
+     * Returns the index of the directory layout, building it if it has been invalidated
+     */
+    private RecipeLayoutIndex index() {
+        RecipeLayoutIndex current = index;
+        if (current == null) {
+            synchronized (this) {
+                current = index;
+                if (current == null) {
+                    current = buildIndex();
+                    index = current;
                 }
             }
+        }
+        return current;
+    }
+
+    private RecipeLayoutIndex buildIndex() {
+        try {
+            return RecipeLayoutIndex.build(scmInfoDirectory, buildInfoDirectory);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return Optional.ofNullable(currentPath);
     }
 
     @Override
@@ -164,11 +169,16 @@ public class RecipeLayoutManager implements RecipeDirectory {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        index = null;
     }
 
+    /**
+     * Re-reads the directory layout, the new index is swapped in once it is complete so lookups are never made
+     * against a partial index.
+     */
     @Override
     public void update() {
-
+        index = buildIndex();
     }
 
     @Override
@@ -191,5 +201,6 @@ public class RecipeLayoutManager implements RecipeDirectory {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        index = null;
     }
 }
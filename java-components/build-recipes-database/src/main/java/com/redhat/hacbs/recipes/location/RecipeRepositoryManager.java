@@ -6,13 +6,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.merge.ContentMergeStrategy;
 import org.eclipse.jgit.merge.MergeStrategy;
 
+import com.redhat.hacbs.recipes.RecipeCache;
 import com.redhat.hacbs.recipes.util.GitCredentials;
 
 /**
@@ -132,11 +136,16 @@ public class RecipeRepositoryManager implements RecipeDirectory {
     @Override
     public void update() {
         try {
+            ObjectId head = git.getRepository().resolve(Constants.HEAD);
             git.pull().setContentMergeStrategy(ContentMergeStrategy.THEIRS).setStrategy(MergeStrategy.THEIRS)
                     .call();
-        } catch (GitAPIException e) {
+            if (!Objects.equals(head, git.getRepository().resolve(Constants.HEAD))) {
+                RecipeCache.INSTANCE.invalidate(local);
+            }
+        } catch (GitAPIException | IOException e) {
             throw new RuntimeException(e);
         }
+        recipeLayoutManager.update();
         lastUpdate = System.currentTimeMillis();
     }
 
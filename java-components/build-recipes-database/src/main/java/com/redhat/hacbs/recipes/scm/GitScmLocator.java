@@ -7,7 +7,6 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -81,7 +80,8 @@ public class GitScmLocator implements ScmLocator {
         }
 
         /**
-         * Whether to cache code repository tags between {@link ScmLocator#resolveTagInfo(GAV)} calls
+         * Whether to cache code repository tags between {@link ScmLocator#resolveTagInfo(GAV)} calls. The tags are held in
+         * {@link RepositoryTagCache#INSTANCE}, so are shared with every other locator that caches them.
          *
          * @param cacheRepoTags whether to cache code repository tags
          * @return this builder instance
@@ -135,9 +135,8 @@ public class GitScmLocator implements ScmLocator {
     }
 
     private final List<String> recipeRepos;
-    private final boolean cacheRepoTags;
     private final ScmLocator fallbackScmLocator;
-    private final Map<String, Map<String, String>> repoTagsToHash;
+    private final RepositoryTagCache tagCache;
     private final boolean cloneLocalRecipeRepos;
     private final Path gitCloneBaseDir;
 
@@ -145,9 +144,8 @@ public class GitScmLocator implements ScmLocator {
 
     private GitScmLocator(Builder builder) {
         this.recipeRepos = builder.recipeRepos;
-        this.cacheRepoTags = builder.cacheRepoTags;
         this.fallbackScmLocator = builder.fallbackScmLocator;
-        this.repoTagsToHash = cacheRepoTags ? new HashMap<>() : Map.of();
+        this.tagCache = builder.cacheRepoTags ? RepositoryTagCache.INSTANCE : null;
         this.cloneLocalRecipeRepos = builder.cloneLocalRecipeRepos;
         this.recipeGroupManager = builder.recipeGroupManager;
         this.gitCloneBaseDir = builder.gitCloneBaseDir;
@@ -207,7 +205,7 @@ public class GitScmLocator implements ScmLocator {
         for (var recipe : recipes) {
             ScmInfo main;
             try {
-                main = BuildRecipe.SCM.getHandler().parse(recipe);
+                main = BuildRecipe.SCM.getHandler().parseCached(recipe);
             } catch (IOException e) {
                 throw new UncheckedIOException("Failed to parse " + recipe, e);
             }
@@ -240,63 +238,28 @@ public class GitScmLocator implements ScmLocator {
 
             //now look for a tag
             try {
-                final Map<String, String> tagsToHash = getTagToHashMap(parsedInfo);
-                if (fallbackTagInfo != null && fallbackTagInfo.getTag() != null) {
-                    var hash = tagsToHash.get(fallbackTagInfo.getTag());
-                    if (hash != null) {
-                        return new TagInfo(fallbackTagInfo.getRepoInfo(), fallbackTagInfo.getTag(), hash);
+                final TagIndex tags = getTags(parsedInfo);
+                RuntimeException[] heuristicFailure = new RuntimeException[1];
+                TagInfo result = selectTag(parsedInfo, tags, fallbackTagInfo, allMappings, toBuild.getVersion(),
+                        heuristicFailure);
+                if (result == null && tagCache != null) {
+                    //the tag may have been pushed since the tags were cached
+                    TagIndex refreshed = tagCache.refresh(parsedInfo.getUriWithoutFragment());
+                    if (!refreshed.tagsToHash().equals(tags.tagsToHash())) {
+                        log.debugf("Tags in %s have changed, looking for a tag again", parsedInfo.getUri());
+                        result = selectTag(parsedInfo, refreshed, fallbackTagInfo, allMappings, toBuild.getVersion(),
+                                heuristicFailure);
                     }
                 }
-
-                String version = toBuild.getVersion();
-                String underscoreVersion = version.replace(".", "_");
-                String selectedTag = null;
-
-                //first try tag mappings
-                for (var mapping : allMappings) {
-                    log.debugf("Trying tag pattern %s on version %s", mapping.getPattern(), version);
-                    Matcher m = Pattern.compile(mapping.getPattern()).matcher(version);
-                    if (m.matches()) {
-                        log.debugf("Tag pattern %s matches", mapping.getPattern());
-                        String match = mapping.getTag();
-                        for (int i = 0; i <= m.groupCount(); ++i) {
-                            match = match.replaceAll("\\$" + i, m.group(i));
-                        }
-                        log.debugf("Trying to find tag %s", match);
-                        //if the tag was a constant we don't require it to be in the tag set
-                        //this allows for explicit refs to be used
-                        if (tagsToHash.containsKey(match) || match.equals(mapping.getTag())) {
-                            selectedTag = match;
-                            break;
-                        }
-                    }
-                }
-
-                if (selectedTag == null) {
-                    try {
-                        selectedTag = runTagHeuristic(version, tagsToHash);
-                    } catch (RuntimeException e) {
-                        if (firstFailure == null) {
-                            firstFailure = e;
-                        } else {
-                            firstFailure.addSuppressed(e);
-                        }
-                        //it is a very common pattern to use underscores instead of dots in the tags
-                        selectedTag = runTagHeuristic(underscoreVersion, tagsToHash);
-                    }
-                }
-
-                if (selectedTag != null) {
-                    firstFailure = null;
-                    String hash = tagsToHash.get(selectedTag);
-                    if (hash == null) {
-                        hash = selectedTag; //sometimes the tag is a hash
-                    }
-
-                    TagInfo result = new TagInfo(parsedInfo, selectedTag, hash);
+                if (result != null) {
                     log.infof("Returning tag information of %s", result);
                     return result;
                 }
+                if (firstFailure == null) {
+                    firstFailure = heuristicFailure[0];
+                } else {
+                    firstFailure.addSuppressed(heuristicFailure[0]);
+                }
             } catch (RuntimeException ex) {
                 log.error("Failure to determine tag", ex);
                 if (firstFailure == null) {
@@ -313,24 +276,78 @@ public class GitScmLocator implements ScmLocator {
         return null;
     }
 
-    static String runTagHeuristic(String version, Map<String, String> tagsToHash) {
+    /**
+     * Selects the tag for the version from the tags in the repository
+     *
+     * @param heuristicFailure Holder for the reason the tag heuristic failed
+     * @return The tag, or null if it could not be determined
+     */
+    private static TagInfo selectTag(RepositoryInfo parsedInfo, TagIndex tags, TagInfo fallbackTagInfo,
+            List<TagMapping> allMappings, String version, RuntimeException[] heuristicFailure) {
+        if (fallbackTagInfo != null && fallbackTagInfo.getTag() != null) {
+            var hash = tags.hash(fallbackTagInfo.getTag());
+            if (hash != null) {
+                return new TagInfo(fallbackTagInfo.getRepoInfo(), fallbackTagInfo.getTag(), hash);
+            }
+        }
+
+        String underscoreVersion = version.replace(".", "_");
         String selectedTag = null;
-        Set<String> versionExactContains = new HashSet<>();
-        Set<String> tagExactContains = new HashSet<>();
-        for (var name : tagsToHash.keySet()) {
-            if (name.equals(version)) {
-                //exact match is always good
-                selectedTag = version;
-                break;
-            } else if (name.contains(version)) {
-                versionExactContains.add(name);
-            } else if (version.contains(name)) {
-                tagExactContains.add(name);
+
+        //first try tag mappings
+        for (var mapping : allMappings) {
+            log.debugf("Trying tag pattern %s on version %s", mapping.getPattern(), version);
+            Matcher m = mapping.compiledPattern().matcher(version);
+            if (m.matches()) {
+                log.debugf("Tag pattern %s matches", mapping.getPattern());
+                String match = mapping.getTag();
+                for (int i = 0; i <= m.groupCount(); ++i) {
+                    match = match.replaceAll("\\$" + i, m.group(i));
+                }
+                log.debugf("Trying to find tag %s", match);
+                //if the tag was a constant we don't require it to be in the tag set
+                //this allows for explicit refs to be used
+                if (tags.contains(match) || match.equals(mapping.getTag())) {
+                    selectedTag = match;
+                    break;
+                }
             }
         }
-        if (selectedTag != null) {
-            return selectedTag;
+
+        if (selectedTag == null) {
+            try {
+                selectedTag = runTagHeuristic(version, tags);
+            } catch (RuntimeException e) {
+                //it is a very common pattern to use underscores instead of dots in the tags
+                try {
+                    selectedTag = runTagHeuristic(underscoreVersion, tags);
+                } catch (RuntimeException ex) {
+                    e.addSuppressed(ex);
+                    heuristicFailure[0] = e;
+                    return null;
+                }
+            }
+        }
+
+        String hash = tags.hash(selectedTag);
+        if (hash == null) {
+            hash = selectedTag; //sometimes the tag is a hash
         }
+        return new TagInfo(parsedInfo, selectedTag, hash);
+    }
+
+    static String runTagHeuristic(String version, Map<String, String> tagsToHash) {
+        return runTagHeuristic(version, new TagIndex(tagsToHash));
+    }
+
+    static String runTagHeuristic(String version, TagIndex tags) {
+        if (tags.contains(version)) {
+            //exact match is always good
+            return version;
+        }
+        String selectedTag = null;
+        Set<String> versionExactContains = tags.containing(version);
+        Set<String> tagExactContains = tags.containedIn(version);
 
         //no exact match
         if (versionExactContains.size() == 1) {
@@ -373,27 +390,23 @@ public class GitScmLocator implements ScmLocator {
         return selectedTag;
     }
 
-    private Map<String, String> getTagToHashMap(RepositoryInfo repo) {
-        Map<String, String> tagsToHash = repoTagsToHash.get(repo.getUri());
-        if (tagsToHash == null) {
-            tagsToHash = getTagToHashMapFromGit(repo);
-            if (cacheRepoTags) {
-                repoTagsToHash.put(repo.getUri(), tagsToHash);
-            }
+    private TagIndex getTags(RepositoryInfo repo) {
+        if (tagCache != null) {
+            return tagCache.get(repo.getUriWithoutFragment());
         }
-        return tagsToHash;
+        return new TagIndex(getTagToHashMapFromGit(repo.getUriWithoutFragment()));
     }
 
-    private static Map<String, String> getTagToHashMapFromGit(RepositoryInfo parsedInfo) {
+    static Map<String, String> getTagToHashMapFromGit(String uri) {
         Map<String, String> tagsToHash;
         final Collection<Ref> tags;
         try {
             tags = Git.lsRemoteRepository()
                     .setCredentialsProvider(
                             new GitCredentials())
-                    .setRemote(parsedInfo.getUriWithoutFragment()).setTags(true).setHeads(false).call();
+                    .setRemote(uri).setTags(true).setHeads(false).call();
         } catch (GitAPIException e) {
-            throw new RuntimeException("Failed to obtain a list of tags from " + parsedInfo.getUri(), e);
+            throw new RuntimeException("Failed to obtain a list of tags from " + uri, e);
         }
         tagsToHash = new HashMap<>(tags.size());
         for (var tag : tags) {
@@ -0,0 +1,96 @@
+package com.redhat.hacbs.recipes.scm;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+/**
+ * Cache of the tags in code repositories, shared between {@link GitScmLocator} instances.
+ * <p>
+ * Concurrent lookups of a repository that is not cached share a single ls-remote. Once an entry is older than the TTL
+ * the next lookup still returns it, and the tags are refreshed in the background, so a repository that is in constant
+ * use is never waited on after the first lookup. An entry that has not been refreshed for twice the TTL is dropped.
+ * <p>
+ * The tags are cached as a {@link TagIndex}, so the index is built once per ls-remote rather than once per lookup.
+ * <p>
+ * If no tag can be found in the cached tags the caller can {@link #refresh(String)} them, as the tag may have been
+ * pushed since they were fetched. Forced refreshes of a repository are rate limited, so versions that will never have a
+ * tag do not cause an ls-remote on every lookup.
+ */
+public final class RepositoryTagCache {
+
+    static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+    static final long MAX_REPOSITORIES = 1000;
+    static final Duration MIN_FORCED_REFRESH_INTERVAL = Duration.ofMinutes(1);
+    static final int REFRESH_THREADS = 4;
+
+    public static final RepositoryTagCache INSTANCE = new RepositoryTagCache(DEFAULT_TTL, Ticker.systemTicker(),
+            refreshExecutor(), GitScmLocator::getTagToHashMapFromGit);
+
+    private final LoadingCache<String, TagIndex> tags;
+    /**
+     * The repositories that have had a forced refresh within the minimum interval
+     */
+    private final Cache<String, Boolean> forcedRefreshes;
+    private final Function<String, Map<String, String>> lsRemote;
+
+    RepositoryTagCache(Duration ttl, Ticker ticker, Executor executor, Function<String, Map<String, String>> lsRemote) {
+        this.lsRemote = lsRemote;
+        this.forcedRefreshes = Caffeine.newBuilder()
+                .maximumSize(MAX_REPOSITORIES)
+                .expireAfterWrite(MIN_FORCED_REFRESH_INTERVAL)
+                .ticker(ticker)
+                .build();
+        this.tags = Caffeine.newBuilder()
+                .maximumSize(MAX_REPOSITORIES)
+                .refreshAfterWrite(ttl)
+                .expireAfterWrite(ttl.multipliedBy(2))
+                .ticker(ticker)
+                .executor(executor)
+                .build(uri -> new TagIndex(Map.copyOf(lsRemote.apply(uri))));
+    }
+
+    /**
+     * Returns the tags in the repository
+     *
+     * @param uri The repository URI, without any fragment
+     */
+    TagIndex get(String uri) {
+        return tags.get(uri);
+    }
+
+    /**
+     * Fetches the tags in the repository again, unless they have already been refreshed within the last
+     * {@link #MIN_FORCED_REFRESH_INTERVAL}, in which case the cached tags are returned.
+     *
+     * @param uri The repository URI, without any fragment
+     */
+    TagIndex refresh(String uri) {
+        if (forcedRefreshes.asMap().putIfAbsent(uri, Boolean.TRUE) != null) {
+            return tags.get(uri);
+        }
+        TagIndex index = new TagIndex(Map.copyOf(lsRemote.apply(uri)));
+        tags.put(uri, index);
+        return index;
+    }
+
+    /**
+     * Background refreshes run on their own threads, as ls-remote blocks on the network.
+     */
+    private static Executor refreshExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(REFRESH_THREADS, r -> {
+            Thread thread = new Thread(r, "repository-tag-refresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package com.redhat.hacbs.recipes.scm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The tags in a code repository, indexed so the tag heuristic does not need to scan every tag.
+ * <p>
+ * Some repositories have tens of thousands of tags, and the heuristic needs every tag that contains the version, and
+ * every tag that is contained in the version. The first is answered from an index of the three character substrings
+ * of each tag, the second by looking up each substring of the version. The substring index is only built the first
+ * time it is needed, as a lot of lookups are answered by an exact match or a tag mapping.
+ */
+final class TagIndex {
+
+    static final int GRAM = 3;
+
+    private final Map<String, String> tagsToHash;
+    private volatile Map<String, String[]> grams;
+
+    TagIndex(Map<String, String> tagsToHash) {
+        this.tagsToHash = tagsToHash;
+    }
+
+    Map<String, String> tagsToHash() {
+        return tagsToHash;
+    }
+
+    boolean contains(String tag) {
+        return tagsToHash.containsKey(tag);
+    }
+
+    /**
+     * Returns the hash of the commit the tag points to, or null if there is no such tag
+     */
+    String hash(String tag) {
+        return tagsToHash.get(tag);
+    }
+
+    /**
+     * Returns the tags that contain the given string, other than the string itself
+     */
+    Set<String> containing(String value) {
+        Set<String> result = new LinkedHashSet<>();
+        if (value.length() < GRAM) {
+            for (var tag : tagsToHash.keySet()) {
+                if (tag.contains(value) && !tag.equals(value)) {
+                    result.add(tag);
+                }
+            }
+            return result;
+        }
+        //every tag that contains the value contains all of its substrings, so only the rarest one needs checking
+        Map<String, String[]> grams = grams();
+        String[] candidates = null;
+        for (int i = 0; i + GRAM <= value.length(); ++i) {
+            String[] tags = grams.get(value.substring(i, i + GRAM));
+            if (tags == null) {
+                return result;
+            }
+            if (candidates == null || tags.length < candidates.length) {
+                candidates = tags;
+            }
+        }
+        for (var tag : candidates) {
+            if (tag.contains(value) && !tag.equals(value)) {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the tags that are contained in the given string, other than the string itself
+     */
+    Set<String> containedIn(String value) {
+        Set<String> result = new LinkedHashSet<>();
+        for (int start = 0; start < value.length(); ++start) {
+            for (int end = start + 1; end <= value.length(); ++end) {
+                if (end - start == value.length()) {
+                    continue;
+                }
+                String candidate = value.substring(start, end);
+                if (tagsToHash.containsKey(candidate)) {
+                    result.add(candidate);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Map<String, String[]> grams() {
+        Map<String, String[]> result = grams;
+        if (result == null) {
+            synchronized (this) {
+                result = grams;
+                if (result == null) {
+                    Map<String, List<String>> building = new HashMap<>();
+                    for (var tag : tagsToHash.keySet()) {
+                        Set<String> seen = new LinkedHashSet<>();
+                        for (int i = 0; i + GRAM <= tag.length(); ++i) {
+                            String gram = tag.substring(i, i + GRAM);
+                            if (seen.add(gram)) {
+                                building.computeIfAbsent(gram, k -> new ArrayList<>()).add(tag);
+                            }
+                        }
+                    }
+                    result = new HashMap<>(building.size());
+                    for (var e : building.entrySet()) {
+                        result.put(e.getKey(), e.getValue().toArray(String[]::new));
+                    }
+                    grams = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -1,5 +1,7 @@
 package com.redhat.hacbs.recipes.scm;
 
+import java.util.regex.Pattern;
+
 public class TagMapping {
 
     /**
@@ -10,6 +12,10 @@ public class TagMapping {
      * The corresponding tag, with $n placeholders to represent the capture groups to be replaced
      */
     private String tag;
+    /**
+     * The compiled pattern, parsed recipes are cached so this is only compiled once per recipe
+     */
+    private volatile Pattern compiledPattern;
 
     public String getPattern() {
         return pattern;
@@ -17,9 +23,19 @@ public class TagMapping {
 
     public TagMapping setPattern(String pattern) {
         this.pattern = pattern;
+        this.compiledPattern = null;
         return this;
     }
 
+    Pattern compiledPattern() {
+        Pattern result = compiledPattern;
+        if (result == null) {
+            result = Pattern.compile(pattern);
+            compiledPattern = result;
+        }
+        return result;
+    }
+
     public String getTag() {
         return tag;
     }
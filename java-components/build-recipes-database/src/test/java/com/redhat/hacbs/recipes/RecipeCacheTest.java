@@ -0,0 +1,40 @@
+package com.redhat.hacbs.recipes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.redhat.hacbs.recipes.mavenrepo.MavenRepositoryInfo;
+import com.redhat.hacbs.recipes.mavenrepo.MavenRepositoryInfoManager;
+import com.redhat.hacbs.recipes.scm.ScmInfo;
+
+public class RecipeCacheTest {
+
+    @Test
+    public void testParsedRecipesCached(@TempDir Path tempDir) throws Exception {
+        Path scm = tempDir.resolve("scm.yaml");
+        Files.writeString(scm, "uri: https://github.com/quarkusio/quarkus.git\n");
+        ScmInfo first = BuildRecipe.SCM.getHandler().parseCached(scm);
+        Assertions.assertEquals("https://github.com/quarkusio/quarkus.git", first.getUri());
+        Assertions.assertSame(first, BuildRecipe.SCM.getHandler().parseCached(scm));
+        //uncached parsing always returns a new instance that can be modified
+        Assertions.assertNotSame(first, BuildRecipe.SCM.getHandler().parse(scm));
+
+        //a changed file is parsed again
+        Files.writeString(scm, "uri: https://github.com/quarkusio/quarkus-security.git\n");
+        ScmInfo changed = BuildRecipe.SCM.getHandler().parseCached(scm);
+        Assertions.assertEquals("https://github.com/quarkusio/quarkus-security.git", changed.getUri());
+
+        //as is everything in a directory that has been invalidated, even if the file looks the same
+        Path repo = tempDir.resolve("repository.yaml");
+        Files.writeString(repo, "uri: https://repo1.maven.org/maven2\n");
+        MavenRepositoryInfo info = MavenRepositoryInfoManager.INSTANCE.parseCached(repo);
+        Assertions.assertSame(info, MavenRepositoryInfoManager.INSTANCE.parseCached(repo));
+        RecipeCache.INSTANCE.invalidate(tempDir);
+        Assertions.assertNotSame(changed, BuildRecipe.SCM.getHandler().parseCached(scm));
+        Assertions.assertNotSame(info, MavenRepositoryInfoManager.INSTANCE.parseCached(repo));
+    }
+}
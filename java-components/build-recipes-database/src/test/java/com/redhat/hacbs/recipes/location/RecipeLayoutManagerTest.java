@@ -1,15 +1,185 @@
 package com.redhat.hacbs.recipes.location;
 
+import static com.redhat.hacbs.recipes.location.RecipeLayoutManager.ARTIFACT;
+import static com.redhat.hacbs.recipes.location.RecipeLayoutManager.VERSION;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
 
+import org.apache.maven.artifact.versioning.ComparableVersion;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import com.redhat.hacbs.recipes.BuildRecipe;
+import com.redhat.hacbs.recipes.scm.ScmInfo;
+
 class RecipeLayoutManagerTest {
+
+    static final String[] VERSIONS = { "0.9", "1.0-alpha1", "1.0", "1.0.1", "1.1", "2.0.Final", "2.1-SNAPSHOT", "3" };
+
     @Test
     public void testPaths(@TempDir Path tempDir) {
         RecipeLayoutManager recipeLayoutManager = new RecipeLayoutManager(tempDir);
 
         recipeLayoutManager.getAllRepositoryPaths();
     }
+
+    @Test
+    public void testIndexMatchesFileSystem(@TempDir Path tempDir) throws IOException {
+        Random random = new Random(42);
+        List<String> groups = new ArrayList<>();
+        List<String> scmUris = new ArrayList<>();
+        for (var i = 0; i < 50; ++i) {
+            String group = "org.acme" + (i % 5) + ".group" + i;
+            groups.add(group);
+            Path groupPath = tempDir.resolve(RecipeRepositoryManager.SCM_INFO).resolve(group.replace('.', File.separatorChar));
+            Files.createDirectories(groupPath);
+            addVersions(random, groupPath);
+            for (var j = 0; j < random.nextInt(3); ++j) {
+                addVersions(random, Files.createDirectories(groupPath.resolve(ARTIFACT).resolve("artifact" + j)));
+            }
+            String scmUri = "github.com/acme" + (i % 5) + "/project" + i;
+            scmUris.add("https://" + scmUri + ".git");
+            addVersions(random, Files.createDirectories(tempDir.resolve(RecipeRepositoryManager.BUILD_INFO).resolve(scmUri)));
+        }
+        groups.add("org.acme0");
+        groups.add("org.missing");
+        scmUris.add("https://github.com/acme0");
+        scmUris.add("https://github.com/missing/project");
+
+        RecipeLayoutManager manager = new RecipeLayoutManager(tempDir);
+        for (String group : groups) {
+            for (var j = 0; j < 4; ++j) {
+                for (String version : VERSIONS) {
+                    String artifact = "artifact" + j;
+                    Optional<RecipePathMatch> expected = fileSystemArtifactPaths(tempDir, group, artifact, version);
+                    Optional<RecipePathMatch> actual = manager.getArtifactPaths(group, artifact, version);
+                    Assertions.assertEquals(expected, actual, group + ":" + artifact + ":" + version);
+                    Assertions.assertEquals(expected.map(RecipePathMatch::isGroupAuthoritative),
+                            actual.map(RecipePathMatch::isGroupAuthoritative));
+                }
+            }
+        }
+        for (String scmUri : scmUris) {
+            for (String version : VERSIONS) {
+                Assertions.assertEquals(fileSystemBuildPaths(tempDir, scmUri, version),
+                        manager.getBuildPaths(scmUri, version), scmUri + " " + version);
+            }
+        }
+    }
+
+    @Test
+    public void testIndexMatchesTestRecipes() throws Exception {
+        //noinspection DataFlowIssue
+        Path path = Paths.get(RecipeLayoutManagerTest.class.getClassLoader().getResource("test-recipes").toURI());
+        RecipeLayoutManager manager = new RecipeLayoutManager(path);
+        for (String gav : List.of("io.quarkus:quarkus-core", "io.quarkus:quarkus-gizmo", "io.vertx:vertx-web-parent",
+                "org.lz4:lz4-pure-java", "io.test.acme:acme", "org.missing:missing")) {
+            String[] parts = gav.split(":");
+            for (String version : List.of("0.9", "1.0-alpha1", "1.0", "2.0")) {
+                Assertions.assertEquals(fileSystemArtifactPaths(path, parts[0], parts[1], version),
+                        manager.getArtifactPaths(parts[0], parts[1], version));
+            }
+        }
+        for (String version : List.of("0.9", "1.0", "1.9999", "2.0")) {
+            Assertions.assertEquals(fileSystemBuildPaths(path, "https://github.com/quarkusio/quarkus.git", version),
+                    manager.getBuildPaths("https://github.com/quarkusio/quarkus.git", version));
+        }
+    }
+
+    @Test
+    public void testIndexUpdated(@TempDir Path tempDir) throws IOException {
+        RecipeLayoutManager manager = new RecipeLayoutManager(tempDir);
+        Assertions.assertTrue(manager.getArtifactPaths("io.quarkus", "quarkus-core", "1.0").isEmpty());
+
+        //writes through the manager are seen straight away
+        manager.writeArtifactData(new AddRecipeRequest<>(BuildRecipe.SCM,
+                new ScmInfo("git", "https://github.com/quarkusio/quarkus.git"), "io.quarkus", null, null));
+        Assertions.assertTrue(manager.getArtifactPaths("io.quarkus", "quarkus-core", "1.0").isPresent());
+
+        //changes made directly to the repository, such as a git pull, are seen after an update
+        Path version = tempDir.resolve(RecipeRepositoryManager.SCM_INFO).resolve("io").resolve("quarkus").resolve(VERSION)
+                .resolve("1.1");
+        Files.createDirectories(version);
+        Assertions.assertNull(manager.getArtifactPaths("io.quarkus", "quarkus-core", "1.0").get().getVersion());
+        manager.update();
+        Assertions.assertEquals(version, manager.getArtifactPaths("io.quarkus", "quarkus-core", "1.0").get().getVersion());
+    }
+
+    static void addVersions(Random random, Path path) throws IOException {
+        for (String version : VERSIONS) {
+            if (random.nextInt(4) == 0) {
+                Files.createDirectories(path.resolve(VERSION).resolve(version));
+            }
+        }
+    }
+
+    /**
+     * Resolves the artifact paths directly against the file system, the way they were resolved before the layout was
+     * indexed
+     */
+    static Optional<RecipePathMatch> fileSystemArtifactPaths(Path base, String groupId, String artifactId,
+            String version) {
+        Path groupPath = base.resolve(RecipeRepositoryManager.SCM_INFO).resolve(groupId.replace('.', File.separatorChar));
+        Path artifactPath = groupPath.resolve(ARTIFACT).resolve(artifactId);
+        Path artifactAndVersionPath = null;
+        if (Files.notExists(groupPath)) {
+            return Optional.empty();
+        }
+        boolean groupAuthoritative = true;
+        if (Files.exists(artifactPath)) {
+            artifactAndVersionPath = fileSystemResolveVersion(artifactPath, version).orElse(null);
+            groupAuthoritative = false;
+        } else {
+            artifactPath = null;
+        }
+        Path versionPath = fileSystemResolveVersion(groupPath, version).orElse(null);
+        if (versionPath != null) {
+            groupAuthoritative = false;
+        }
+        return Optional
+                .of(new RecipePathMatch(groupPath, artifactPath, versionPath, artifactAndVersionPath, groupAuthoritative));
+    }
+
+    static Optional<Path> fileSystemBuildPaths(Path base, String scmUri, String version) {
+        Path target = base.resolve(RecipeRepositoryManager.BUILD_INFO).resolve(RecipeGroupManager.normalizeScmUri(scmUri));
+        if (!Files.exists(target)) {
+            return Optional.empty();
+        }
+        return Optional.of(fileSystemResolveVersion(target, version).orElse(target));
+    }
+
+    static Optional<Path> fileSystemResolveVersion(Path target, String version) {
+        Path versions = target.resolve(VERSION);
+        if (!Files.exists(versions)) {
+            return Optional.empty();
+        }
+        ComparableVersion requestedVersion = new ComparableVersion(version);
+        ComparableVersion currentVersion = null;
+        Path currentPath = null;
+        try (var s = Files.list(versions)) {
+            var i = s.iterator();
+            while (i.hasNext()) {
+                var path = i.next();
+                ComparableVersion pv = new ComparableVersion(path.getFileName().toString());
+                if (requestedVersion.compareTo(pv) <= 0) {
+                    if (currentVersion == null || pv.compareTo(currentVersion) < 0) {
+                        currentVersion = pv;
+                        currentPath = path;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Optional.ofNullable(currentPath);
+    }
 }
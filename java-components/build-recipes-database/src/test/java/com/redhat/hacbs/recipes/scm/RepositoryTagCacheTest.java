@@ -0,0 +1,158 @@
+package com.redhat.hacbs.recipes.scm;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RepositoryTagCacheTest {
+
+    static final int THREADS = 32;
+    static final Duration TTL = Duration.ofMinutes(5);
+
+    @Test
+    public void testLsRemoteOncePerTtl(@TempDir Path tempDir) throws Exception {
+        Git work = Git.init().setDirectory(tempDir.resolve("work").toFile()).setInitialBranch("main").call();
+        work.commit().setMessage("initial").setSign(false).setAllowEmpty(true).call();
+        work.tag().setName("1.0").call();
+        Path bare = tempDir.resolve("bare.git");
+        Git.cloneRepository().setURI(work.getRepository().getDirectory().toURI().toString()).setBare(true)
+                .setDirectory(bare.toFile()).call().close();
+        String uri = bare.toUri().toString();
+
+        AtomicLong time = new AtomicLong();
+        AtomicInteger lsRemotes = new AtomicInteger();
+        ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            RepositoryTagCache cache = new RepositoryTagCache(TTL, time::get, refreshExecutor, u -> {
+                lsRemotes.incrementAndGet();
+                return GitScmLocator.getTagToHashMapFromGit(u);
+            });
+
+            for (Map<String, String> tags : lookup(cache, uri, executor)) {
+                Assertions.assertEquals(Map.of("1.0", work.getRepository().resolve("1.0^{}").name()), tags);
+            }
+            Assertions.assertEquals(1, lsRemotes.get());
+
+            //within the TTL a new tag is not seen
+            work.commit().setMessage("second").setSign(false).setAllowEmpty(true).call();
+            work.tag().setName("1.1").call();
+            work.push().setRemote(uri).setPushTags().call();
+            time.addAndGet(TTL.toNanos());
+            for (Map<String, String> tags : lookup(cache, uri, executor)) {
+                Assertions.assertEquals(Map.of("1.0", work.getRepository().resolve("1.0^{}").name()), tags);
+            }
+            Assertions.assertEquals(1, lsRemotes.get());
+
+            //once it is stale the cached tags are returned while they are refreshed in the background
+            time.addAndGet(1);
+            for (Map<String, String> tags : lookup(cache, uri, executor)) {
+                Assertions.assertTrue(tags.containsKey("1.0"));
+            }
+            refreshExecutor.submit(() -> {
+            }).get();
+            Assertions.assertEquals(2, lsRemotes.get());
+            Assertions.assertEquals(Map.of("1.0", work.getRepository().resolve("1.0^{}").name(),
+                    "1.1", work.getRepository().resolve("1.1^{}").name()), cache.get(uri).tagsToHash());
+            Assertions.assertEquals(2, lsRemotes.get());
+
+            //an entry that has not been used for twice the TTL is loaded again
+            time.addAndGet(TTL.multipliedBy(2).toNanos());
+            lookup(cache, uri, executor);
+            Assertions.assertEquals(3, lsRemotes.get());
+        } finally {
+            executor.shutdownNow();
+            refreshExecutor.shutdownNow();
+            refreshExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            work.close();
+        }
+    }
+
+    @Test
+    public void testForcedRefreshRateLimited(@TempDir Path tempDir) throws Exception {
+        Git work = Git.init().setDirectory(tempDir.resolve("work").toFile()).setInitialBranch("main").call();
+        work.commit().setMessage("initial").setSign(false).setAllowEmpty(true).call();
+        work.tag().setName("1.0").call();
+        Path bare = tempDir.resolve("bare.git");
+        Git.cloneRepository().setURI(work.getRepository().getDirectory().toURI().toString()).setBare(true)
+                .setDirectory(bare.toFile()).call().close();
+        String uri = bare.toUri().toString();
+
+        AtomicLong time = new AtomicLong();
+        AtomicInteger lsRemotes = new AtomicInteger();
+        try {
+            RepositoryTagCache cache = new RepositoryTagCache(TTL, time::get, Runnable::run, u -> {
+                lsRemotes.incrementAndGet();
+                return GitScmLocator.getTagToHashMapFromGit(u);
+            });
+            Assertions.assertFalse(cache.get(uri).contains("1.1"));
+
+            //a tag pushed within the TTL is seen after a forced refresh
+            work.commit().setMessage("second").setSign(false).setAllowEmpty(true).call();
+            work.tag().setName("1.1").call();
+            work.push().setRemote(uri).setPushTags().call();
+            Assertions.assertTrue(cache.refresh(uri).contains("1.1"));
+            Assertions.assertTrue(cache.get(uri).contains("1.1"));
+            Assertions.assertEquals(2, lsRemotes.get());
+
+            //another forced refresh within the interval uses the cached tags
+            work.tag().setName("1.2").call();
+            work.push().setRemote(uri).setPushTags().call();
+            Assertions.assertFalse(cache.refresh(uri).contains("1.2"));
+            Assertions.assertEquals(2, lsRemotes.get());
+
+            time.addAndGet(RepositoryTagCache.MIN_FORCED_REFRESH_INTERVAL.toNanos());
+            Assertions.assertTrue(cache.refresh(uri).contains("1.2"));
+            Assertions.assertEquals(3, lsRemotes.get());
+        } finally {
+            work.close();
+        }
+    }
+
+    @Test
+    public void testFailuresNotCached() {
+        AtomicInteger lsRemotes = new AtomicInteger();
+        RepositoryTagCache cache = new RepositoryTagCache(TTL, System::nanoTime, Runnable::run, u -> {
+            lsRemotes.incrementAndGet();
+            return GitScmLocator.getTagToHashMapFromGit(u);
+        });
+        Assertions.assertThrows(RuntimeException.class, () -> cache.get("file:///does/not/exist"));
+        Assertions.assertThrows(RuntimeException.class, () -> cache.get("file:///does/not/exist"));
+        Assertions.assertEquals(2, lsRemotes.get());
+    }
+
+    /**
+     * Looks up the repository from {@link #THREADS} threads at once
+     */
+    static List<Map<String, String>> lookup(RepositoryTagCache cache, String uri, ExecutorService executor)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Map<String, String>>> futures = new ArrayList<>();
+        for (var i = 0; i < THREADS; ++i) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return cache.get(uri).tagsToHash();
+            }));
+        }
+        start.countDown();
+        List<Map<String, String>> results = new ArrayList<>();
+        for (var future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,132 @@
+package com.redhat.hacbs.recipes.scm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TagIndexTest {
+
+    static final Pattern NUMERIC_PART = Pattern.compile("(\\d+)(\\.\\d+)+");
+    static final String[] PREFIXES = { "", "v", "release-", "rel/", "project-", "project-parent-", "r" };
+    static final String[] SUFFIXES = { "", ".Final", "-RELEASE", "-rc1", ".Beta2", "-M1", ".GA" };
+
+    @Test
+    void testSameTagAsScan() {
+        Random random = new Random(1234);
+        //a large monorepo style list of tags, with the same versions tagged in several styles
+        Map<String, String> tagsToHash = new HashMap<>();
+        List<String> versions = new ArrayList<>();
+        while (tagsToHash.size() < 30000) {
+            String version = random.nextInt(10) + "." + random.nextInt(30) + "." + random.nextInt(20);
+            versions.add(version);
+            String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+            String suffix = SUFFIXES[random.nextInt(SUFFIXES.length)];
+            tagsToHash.put(prefix + version + suffix, "");
+            if (random.nextInt(5) == 0) {
+                tagsToHash.put(prefix + version.replace(".", "_") + suffix, "");
+            }
+        }
+        tagsToHash.put("x", "");
+        tagsToHash.put("1.0", "");
+        TagIndex index = new TagIndex(tagsToHash);
+
+        List<String> requested = new ArrayList<>();
+        for (var i = 0; i < 1000; ++i) {
+            String version = versions.get(random.nextInt(versions.size()));
+            requested.add(version);
+            requested.add(version + SUFFIXES[random.nextInt(SUFFIXES.length)]);
+            requested.add(version.replace(".", "_"));
+        }
+        requested.addAll(List.of("1", "1.", "x", "1.0", "1.0.Final", "99.99.99", "0"));
+        int found = 0;
+        for (String version : requested) {
+            String expected;
+            try {
+                expected = scanTagHeuristic(version, tagsToHash);
+            } catch (RuntimeException e) {
+                expected = null;
+            }
+            String actual;
+            try {
+                actual = GitScmLocator.runTagHeuristic(version, index);
+            } catch (RuntimeException e) {
+                actual = null;
+            }
+            Assertions.assertEquals(expected, actual, version);
+            if (actual != null) {
+                found++;
+            }
+        }
+        //make sure this is not just comparing failures
+        Assertions.assertTrue(found > requested.size() / 4, "Found " + found);
+    }
+
+    @Test
+    void testContainedAndContaining() {
+        TagIndex index = new TagIndex(Map.of("1.0", "", "v1.0", "", "1.0.1", "", "1", "", "ab", "", "abc", ""));
+        Assertions.assertEquals(Set.of("v1.0", "1.0.1"), index.containing("1.0"));
+        Assertions.assertEquals(Set.of("1.0", "v1.0", "1.0.1"), index.containing("1."));
+        Assertions.assertEquals(Set.of("1.0", "1"), index.containedIn("v1.0"));
+        Assertions.assertEquals(Set.of("ab"), index.containedIn("abc"));
+        Assertions.assertEquals(Set.of(), index.containing("2.0"));
+    }
+
+    /**
+     * The tag heuristic as it was before the tags were indexed, checking every tag in turn
+     */
+    static String scanTagHeuristic(String version, Map<String, String> tagsToHash) {
+        String selectedTag = null;
+        Set<String> versionExactContains = new HashSet<>();
+        Set<String> tagExactContains = new HashSet<>();
+        for (var name : tagsToHash.keySet()) {
+            if (name.equals(version)) {
+                selectedTag = version;
+                break;
+            } else if (name.contains(version)) {
+                versionExactContains.add(name);
+            } else if (version.contains(name)) {
+                tagExactContains.add(name);
+            }
+        }
+        if (selectedTag != null) {
+            return selectedTag;
+        }
+        if (versionExactContains.size() == 1) {
+            selectedTag = versionExactContains.iterator().next();
+        } else {
+            for (var i : versionExactContains) {
+                if (i.endsWith(version)) {
+                    if (selectedTag == null) {
+                        selectedTag = i;
+                    } else {
+                        throw new RuntimeException("Multiple tags");
+                    }
+                }
+            }
+            if (selectedTag == null && tagExactContains.size() == 1) {
+                var tempTag = tagExactContains.iterator().next();
+                Matcher tm = NUMERIC_PART.matcher(tempTag);
+                Matcher vm = NUMERIC_PART.matcher(version);
+                if (tm.find() && vm.find()) {
+                    if (Objects.equals(tm.group(0), vm.group(0))) {
+                        selectedTag = tempTag;
+                    }
+                }
+            }
+            if (selectedTag == null) {
+                throw new RuntimeException("No tag");
+            }
+        }
+        return selectedTag;
+    }
+}
@@ -151,7 +151,7 @@ public class BuildVerifyCommand implements Runnable {
                     } else {
                         attributes = Map.of("scm-uri", scmUri, "scm-commit", commit, BUILD_ID, buildId);
                     }
-                    ClassFileTracker.addTrackingDataToJar(Files.newInputStream(file),
+                    ClassFileTracker.addTrackingDataToJar(file,
                             new TrackingData(
                                     gav.getGroupId() + ":" + gav.getArtifactId() + ":"
                                             + gav.getVersion(),
@@ -3,18 +3,16 @@ package com.redhat.hacbs.container.deploy.containerregistry;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.Optional;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.tools.jib.api.Credential;
 import com.google.cloud.tools.jib.api.ImageReference;
 import com.google.cloud.tools.jib.api.RegistryException;
-import com.google.cloud.tools.jib.event.EventHandlers;
 import com.google.cloud.tools.jib.frontend.CredentialRetrieverFactory;
-import com.google.cloud.tools.jib.http.FailoverHttpClient;
 import com.google.cloud.tools.jib.registry.RegistryClient;
 import com.google.cloud.tools.jib.registry.credentials.CredentialRetrievalException;
 import com.google.cloud.tools.jib.registry.credentials.json.DockerConfigTemplate;
+import com.redhat.hacbs.common.images.ociclient.RegistryClientPool;
 
 import io.quarkus.logging.Log;
 
@@ -24,34 +22,25 @@ public class ContainerUtil {
 
     public static RegistryClient getRegistryClient(ImageReference imageReference, Credential credential, boolean insecure)
             throws CredentialRetrievalException, RegistryException {
-        if (insecure) {
-            System.setProperty("sendCredentialsOverHttp", "true");
-        }
-
-        RegistryClient.Factory factory = RegistryClient.factory(new EventHandlers.Builder().build(),
-                imageReference.getRegistry(),
-                imageReference.getRepository(), new FailoverHttpClient(insecure, insecure, s -> Log.info(
-                        s.getMessage())));
-
-        if (credential != null) {
-            factory.setCredential(credential);
-        } else {
+        Credential clientCredential = credential;
+        if (clientCredential == null) {
             CredentialRetrieverFactory credentialRetrieverFactory = CredentialRetrieverFactory.forImage(imageReference,
                     s -> Log.info(
                             s.getMessage()));
-            Optional<Credential> optionalCredential = credentialRetrieverFactory.dockerConfig().retrieve();
-            optionalCredential.ifPresent(factory::setCredential);
+            clientCredential = credentialRetrieverFactory.dockerConfig().retrieve().orElse(null);
         }
-        RegistryClient registryClient = factory.newRegistryClient();
+        //clients are shared, so the authentication below is only done the first time a client is used
+        RegistryClientPool.PooledClient pooledClient = RegistryClientPool.getInstance().get(imageReference.getRegistry(),
+                imageReference.getRepository(), clientCredential, insecure);
         //this is quay specific possibly?
         //unfortunately we can't get the actual header
         if (imageReference.getRegistry().equals("quay.io") && credential != null) {
             String wwwAuthenticate = "Bearer realm=\"https://" + imageReference.getRegistry() + "/v2/auth\",service=\""
                     + imageReference.getRegistry()
                     + "\",scope=\"repository:" + imageReference.getRepository() + ":pull\"";
-            registryClient.authPullByWwwAuthenticate(wwwAuthenticate);
+            pooledClient.authenticateIfRequired(c -> c.authPullByWwwAuthenticate(wwwAuthenticate));
         }
-        return registryClient;
+        return pooledClient.getRegistryClient();
     }
 
     public static Credential processToken(String fullName, String token) {
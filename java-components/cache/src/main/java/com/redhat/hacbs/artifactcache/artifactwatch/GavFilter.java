@@ -0,0 +1,87 @@
+package com.redhat.hacbs.artifactcache.artifactwatch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of GAVs, used to answer most lookups for artifacts that have not been rebuilt without touching the
+ * exact set of rebuilt GAVs.
+ * <p>
+ * The filter uses roughly 10 bits per GAV, so a million GAVs take a little over a megabyte, and gives a false positive
+ * rate of about 1%. False positives are fine, as a positive result is always confirmed against the exact set.
+ * Entries cannot be removed, so the filter is rebuilt when it fills up or too many of its entries have been deleted.
+ * <p>
+ * Adding is safe to do concurrently with lookups.
+ */
+final class GavFilter {
+
+    static final int BITS_PER_ENTRY = 10;
+    static final int HASHES = 7;
+
+    private final AtomicLongArray bits;
+    private final long mask;
+    private final int capacity;
+
+    GavFilter(int capacity) {
+        this.capacity = capacity;
+        long required = Math.max(64, (long) capacity * BITS_PER_ENTRY);
+        long size = Long.highestOneBit(required - 1) << 1;
+        this.bits = new AtomicLongArray((int) (size >>> 6));
+        this.mask = size - 1;
+    }
+
+    /**
+     * The number of entries the filter was sized for, after this the false positive rate starts to climb
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    void add(String gav) {
+        long hash = hash(gav);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; ++i) {
+            long bit = (h1 + i * h2) & mask;
+            int word = (int) (bit >>> 6);
+            long value = 1L << bit;
+            long current = bits.get(word);
+            while ((current & value) == 0) {
+                long witness = bits.compareAndExchange(word, current, current | value);
+                if (witness == current) {
+                    break;
+                }
+                current = witness;
+            }
+        }
+    }
+
+    boolean mightContain(String gav) {
+        long hash = hash(gav);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; ++i) {
+            long bit = (h1 + i * h2) & mask;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+     */
+    static long hash(String gav) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < gav.length(); ++i) {
+            hash ^= gav.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
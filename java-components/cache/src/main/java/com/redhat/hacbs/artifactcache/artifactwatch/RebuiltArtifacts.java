@@ -32,6 +32,18 @@ public class RebuiltArtifacts {
 
     final Set<String> gavs = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
+    /**
+     * Filter in front of {@link #gavs}, so most lookups for artifacts that have not been rebuilt are answered without
+     * hitting the set. Replaced whenever it is rebuilt, all changes to it and to the set are made while holding the
+     * lock on this object.
+     */
+    volatile GavFilter filter = new GavFilter(MIN_FILTER_CAPACITY);
+
+    /**
+     * The number of GAVs removed since the filter was last rebuilt, these still match the filter
+     */
+    int removedSinceRebuild;
+
     @PostConstruct
     void setup() {
 
@@ -40,12 +52,15 @@ public class RebuiltArtifacts {
             Log.warnf("Kubernetes client disabled so unable to initiate RebuiltArtifacts");
             return;
         }
+        start();
+    }
 
+    void start() {
         client.resources(RebuiltArtifact.class).inform().addEventHandler(new ResourceEventHandler<RebuiltArtifact>() {
             @Override
             public void onAdd(RebuiltArtifact artifactBuild) {
                 Log.infof("Adding new RebuiltArtifact %s", artifactBuild.getSpec().getGav());
-                gavs.add(artifactBuild.getSpec().getGav());
+                add(artifactBuild.getSpec().getGav());
             }
 
             @Override
@@ -62,12 +77,12 @@ public class RebuiltArtifacts {
                     }
                 }
                 Log.infof("Adding updated RebuiltArtifact %s", newObj.getSpec().getGav());
-                gavs.add(newObj.getSpec().getGav());
+                add(newObj.getSpec().getGav());
             }
 
             @Override
             public void onDelete(RebuiltArtifact artifactBuild, boolean deletedFinalStateUnknown) {
-                gavs.remove(artifactBuild.getSpec().getGav());
+                remove(artifactBuild.getSpec().getGav());
                 if (!deletedFinalStateUnknown) {
                     List<RebuiltArtifactDeletionListener> listeners = new ArrayList<>(imageDeletionListeners.size());
                     synchronized (imageDeletionListeners) {
@@ -90,9 +105,36 @@ public class RebuiltArtifacts {
     }
 
     public boolean isPossiblyRebuilt(String gav) {
-        return gavs.contains(gav);
+        return filter.mightContain(gav) && gavs.contains(gav);
+    }
+
+    synchronized void add(String gav) {
+        //the filter is updated first, so a concurrent lookup never sees the GAV in the set but not the filter
+        filter.add(gav);
+        if (gavs.add(gav) && gavs.size() > filter.capacity()) {
+            rebuildFilter();
+        }
+    }
+
+    synchronized void remove(String gav) {
+        if (gavs.remove(gav) && ++removedSinceRebuild > filter.capacity() / 4) {
+            //stale entries push up the false positive rate, so once there are enough of them start again
+            rebuildFilter();
+        }
+    }
+
+    private void rebuildFilter() {
+        GavFilter rebuilt = new GavFilter(Math.max(MIN_FILTER_CAPACITY, gavs.size() * 2));
+        for (var gav : gavs) {
+            rebuilt.add(gav);
+        }
+        Log.debugf("Rebuilt RebuiltArtifact filter for %s GAVs with capacity %s", gavs.size(), rebuilt.capacity());
+        filter = rebuilt;
+        removedSinceRebuild = 0;
     }
 
+    static final int MIN_FILTER_CAPACITY = 1024;
+
     public interface RebuiltArtifactDeletionListener {
         void rebuiltArtifactDeleted(String gav, String imageDigest);
     }
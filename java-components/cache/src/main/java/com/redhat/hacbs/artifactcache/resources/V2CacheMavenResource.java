@@ -4,12 +4,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -29,6 +31,8 @@ import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
 import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
 import org.apache.maven.artifact.versioning.ComparableVersion;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.redhat.hacbs.artifactcache.services.ArtifactResult;
 import com.redhat.hacbs.artifactcache.services.BuildPolicy;
 import com.redhat.hacbs.artifactcache.services.CacheFacade;
@@ -45,9 +49,31 @@ import io.smallrye.common.annotation.Blocking;
 public class V2CacheMavenResource {
 
     public static final String DEFAULT = "default";
+    /**
+     * The build policy name of the rebuild facades, they all share it so the policy metrics have a bounded set of tags
+     */
+    static final String REBUILD_POLICY = "rebuild";
     final CacheFacade cache;
     final RemoteRepositoryManager remoteRepositoryManager;
 
+    /**
+     * The facades for the rebuild endpoints, keyed by the store list. The repositories that make up a store list do not
+     * change once they have been created, so there is no need to create a new facade for every request.
+     */
+    final Cache<RebuildCacheKey, CacheFacade> rebuildCaches = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    /**
+     * Caches the newest version that was available at a given commit time, so the pom of every listed version does not
+     * need to be checked on every metadata request. Only versions that have been verified are cached, a lookup that
+     * may have been affected by a failure upstream is retried on the next request.
+     */
+    final Cache<NewestVersionKey, String> newestVersionCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(Duration.ofHours(1))
+            .build();
+
     public V2CacheMavenResource(CacheFacade cache, RemoteRepositoryManager remoteRepositoryManager) {
         this.cache = cache;
         this.remoteRepositoryManager = remoteRepositoryManager;
@@ -64,7 +90,7 @@ public class V2CacheMavenResource {
 
         CacheFacade facade = rebuildCache(stores, upstreamOnly);
         Log.debugf("Retrieving artifact %s/%s/%s/%s", group, artifact, version, target);
-        var result = facade.getArtifactFile("", group, artifact, version, target, true);
+        var result = facade.getArtifactFile(REBUILD_POLICY, group, artifact, version, target, true);
         if (result.isPresent()) {
             var builder = Response.ok(result.get().getFileOrStream());
             if (result.get().getMetadata().containsKey("maven-repo")) {
@@ -80,7 +106,11 @@ public class V2CacheMavenResource {
         throw new NotFoundException();
     }
 
-    private CacheFacade rebuildCache(String stores, boolean upstreamOnly) throws Exception {
+    private CacheFacade rebuildCache(String stores, boolean upstreamOnly) {
+        return rebuildCaches.get(new RebuildCacheKey(stores, upstreamOnly), k -> createRebuildCache(stores, upstreamOnly));
+    }
+
+    private CacheFacade createRebuildCache(String stores, boolean upstreamOnly) {
         List<RepositoryCache> caches = new ArrayList<>();
         if (!upstreamOnly) {
             caches.addAll(remoteRepositoryManager.getRemoteRepositories("rebuilt"));
@@ -108,7 +138,11 @@ public class V2CacheMavenResource {
             caches.addAll(remoteRepositoryManager.getRemoteRepositories(RemoteRepositoryManager.SYSTEM + DEFAULT));
         }
         BuildPolicy bp = new BuildPolicy(caches);
-        return new CacheFacade(Map.of("", bp));
+        try {
+            return new CacheFacade(Map.of(REBUILD_POLICY, bp));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @GET
@@ -121,16 +155,17 @@ public class V2CacheMavenResource {
             throws Exception {
         Log.debugf("Retrieving file %s/%s", group, "maven-metadata.xml");
         CacheFacade cache = rebuildCache(stores, upstreamOnly);
-        var result = cache.getMetadataFiles("", group, "maven-metadata.xml" + hash);
+        var result = cache.getMetadataFiles(REBUILD_POLICY, group, "maven-metadata.xml" + hash);
         if (!result.isEmpty()) {
             boolean sha = hash.equals(".sha1");
             if ((commitTime > 0 || result.size() > 1) && (hash.equals("") || sha)) {
+                String policyKey = REBUILD_POLICY + stores + (upstreamOnly ? ":upstream-only" : "");
                 if (sha) {
-                    return filterNewerVersions(cache, "",
-                            cache.getMetadataFiles("", group, "maven-metadata.xml"),
+                    return filterNewerVersions(cache, REBUILD_POLICY, policyKey,
+                            cache.getMetadataFiles(REBUILD_POLICY, group, "maven-metadata.xml"),
                             new Date(commitTime), group, sha);
                 } else {
-                    return filterNewerVersions(cache, "", result, new Date(commitTime), group, sha);
+                    return filterNewerVersions(cache, REBUILD_POLICY, policyKey, result, new Date(commitTime), group, sha);
                 }
             }
             //just return the first one, and close the others
@@ -158,7 +193,7 @@ public class V2CacheMavenResource {
         Log.debugf("Retrieving artifact %s/%s/%s/%s", group, artifact, version, target);
         var result = cache.getArtifactFile(buildPolicy, group, artifact, version, target, true);
         if (result.isPresent()) {
-            var builder = Response.ok(result.get().getData());
+            var builder = Response.ok(result.get().getFileOrStream());
             if (result.get().getMetadata().containsKey("maven-repo")) {
                 builder.header("X-maven-repo", result.get().getMetadata().get("maven-repo"))
                         .build();
@@ -184,11 +219,11 @@ public class V2CacheMavenResource {
             boolean sha = hash.equals(".sha1");
             if ((result.size() > 1) && (hash.equals("") || sha)) {
                 if (sha) {
-                    return filterNewerVersions(cache, buildPolicy,
+                    return filterNewerVersions(cache, buildPolicy, "user/" + buildPolicy,
                             cache.getMetadataFiles(buildPolicy, group, "maven-metadata.xml"),
                             new Date(0), group, sha);
                 } else {
-                    return filterNewerVersions(cache, buildPolicy, result, new Date(0), group, sha);
+                    return filterNewerVersions(cache, buildPolicy, "user/" + buildPolicy, result, new Date(0), group, sha);
                 }
             }
             //just return the first one, and close the others
@@ -206,7 +241,8 @@ public class V2CacheMavenResource {
         throw new NotFoundException();
     }
 
-    private InputStream filterNewerVersions(CacheFacade cache, String buildPolicy, List<ArtifactResult> data, Date commitTime,
+    private InputStream filterNewerVersions(CacheFacade cache, String buildPolicy, String policyKey, List<ArtifactResult> data,
+            Date commitTime,
             String group,
             boolean sha1)
             throws Exception {
@@ -244,45 +280,40 @@ public class V2CacheMavenResource {
                 }
                 firstFile = false;
             }
-            //iterate most recent to oldest
-            //once we have started including older versions then we can stop checking
-            //technically an older point release may still end up being present that was
-            //not there at the commit time, but in practice this should not be an issue
+            //the newest version is only checked against the commit time if it has not already been determined for
+            //this exact set of versions, if the upstream metadata changes then so does the key
+            Optional<String> newestVersion;
+            if (commitTime.getTime() > 0) {
+                var key = new NewestVersionKey(policyKey, group, commitTime.getTime(),
+                        HashUtil.sha1(String.join(",", seenVersions)));
+                newestVersion = Optional.ofNullable(newestVersionCache.getIfPresent(key));
+                if (newestVersion.isEmpty()) {
+                    //this is done outside the cache, so the upstream lookups do not block other keys
+                    var found = findNewestVersion(cache, buildPolicy, groupId, artifactId, group, seenVersions, commitTime);
+                    newestVersion = found.version();
+                    if (found.verified()) {
+                        newestVersionCache.put(key, newestVersion.get());
+                    }
+                }
+            } else {
+                newestVersion = seenVersions.stream().filter(v -> !v.contains("SNAPSHOT")).findFirst();
+            }
+            //iterate most recent to oldest, skipping everything newer than the newest version
             boolean addAll = false;
             for (var version : seenVersions) {
                 if (version.contains("SNAPSHOT")) {
                     continue;
                 }
-                if (addAll) {
-                    outputModel.getVersioning().getVersions().add(version);
-                } else {
-                    if (commitTime.getTime() > 0) {
-                        var result = cache.getArtifactMetadata(buildPolicy, groupId, artifactId, version,
-                                artifactId + "-" + version + ".pom", false);
-                        if (result.isPresent()) {
-                            var lastModified = result.get().get("last-modified");
-                            if (lastModified != null) {
-                                var date = DateUtils.parseDate(lastModified);
-                                if (date != null && date.after(commitTime)) {
-                                    //remove versions released after this artifact
-                                    Log.infof("Removing version %s from %s/maven-metadata.xml", version, group);
-                                    continue;
-                                }
-                            }
-                        } else {
-                            //not found, don't add it
-                            continue;
-                        }
+                if (!addAll) {
+                    if (!version.equals(newestVersion.orElse(null))) {
+                        continue;
                     }
-                    //the default behaviour is to add the version, set it to latest and move to add all mode
-                    //if the artifact is not found or too new then it this is skipped by the continue statements
-                    //above
-                    outputModel.getVersioning().getVersions().add(version);
                     outputModel.getVersioning().setRelease(version);
                     outputModel.getVersioning().setLatest(version);
                     outputModel.getVersioning().setLastUpdatedTimestamp(commitTime);
                     addAll = true;
                 }
+                outputModel.getVersioning().getVersions().add(version);
             }
             MetadataXpp3Writer writer = new MetadataXpp3Writer();
             ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -303,4 +334,48 @@ public class V2CacheMavenResource {
         }
     }
 
+    /**
+     * Finds the most recent version that had been released at the commit time.
+     * <p>
+     * Once a version that was present at the commit time is found we can stop checking, technically an older point release
+     * may still end up being present that was not there at the commit time, but in practice this should not be an issue.
+     * <p>
+     * The result is only verified if every newer version was found and confirmed to be newer than the commit time, a
+     * version that was not found may be missing because of a transient failure.
+     */
+    private NewestVersion findNewestVersion(CacheFacade cache, String buildPolicy, String groupId, String artifactId,
+            String group, Set<String> versions, Date commitTime) {
+        boolean verified = true;
+        for (var version : versions) {
+            if (version.contains("SNAPSHOT")) {
+                continue;
+            }
+            var result = cache.getArtifactMetadata(buildPolicy, groupId, artifactId, version,
+                    artifactId + "-" + version + ".pom", false);
+            if (result.isPresent()) {
+                var lastModified = result.get().get("last-modified");
+                if (lastModified != null) {
+                    var date = DateUtils.parseDate(lastModified);
+                    if (date != null && date.after(commitTime)) {
+                        //remove versions released after this artifact
+                        Log.infof("Removing version %s from %s/maven-metadata.xml", version, group);
+                        continue;
+                    }
+                }
+                return new NewestVersion(Optional.of(version), verified);
+            }
+            //not found, don't add it
+            verified = false;
+        }
+        return new NewestVersion(Optional.empty(), false);
+    }
+
+    record NewestVersion(Optional<String> version, boolean verified) {
+    }
+
+    record RebuildCacheKey(String stores, boolean upstreamOnly) {
+    }
+
+    record NewestVersionKey(String policy, String group, long commitTime, String versionsHash) {
+    }
 }
@@ -0,0 +1,256 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Persists the last access time of the cache directories, so they can be restored on startup without walking the
+ * whole cache.
+ * <p>
+ * Accesses are only recorded in memory, and are appended to the journal in batches when {@link #flush()} is called.
+ * New directories are written straight away with {@link #write(String, long)}, as a directory that is not in the
+ * journal would never be evicted.
+ * The journal is a text file with one {@code <time>\t<relative path>} line per record, where a time of {@code -1} means
+ * the directory has been removed. Later records win. A crash can leave a partially written last line, this is ignored
+ * when the journal is loaded.
+ * <p>
+ * Once the journal has grown too large it is rewritten as a snapshot of the current entries, which is written to a
+ * temp file and then atomically moved into place.
+ * <p>
+ * A loading file is present while the cache is being loaded, if it is still there on startup the previous load did not
+ * complete, and directories created during it may not be in the journal.
+ */
+class AccessJournal implements Closeable {
+
+    static final String FILE_NAME = ".access-journal";
+    static final long DELETED = -1;
+    private static final String OVERHEAD_HEADER = "#overhead\t";
+    /**
+     * The journal is compacted once it has more than this many records, and twice as many records as live entries.
+     */
+    static final int COMPACT_THRESHOLD = 10000;
+
+    private final Path file;
+    private final Path loading;
+
+    /**
+     * Records that have not been written yet, only the latest one for each directory is kept.
+     */
+    private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
+
+    private Writer writer;
+    private long records;
+    private long overhead = -1;
+
+    AccessJournal(Path file) {
+        this.file = file;
+        this.loading = file.resolveSibling(file.getFileName() + ".loading");
+    }
+
+    boolean exists() {
+        return Files.exists(file);
+    }
+
+    /**
+     * Marks the start of the initial load.
+     *
+     * @return true if the previous load did not complete
+     */
+    boolean startLoad() throws IOException {
+        if (Files.exists(loading)) {
+            return true;
+        }
+        Files.createFile(loading);
+        return false;
+    }
+
+    void loadCompleted() throws IOException {
+        Files.deleteIfExists(loading);
+    }
+
+    void recordAccess(String relative, long time) {
+        pending.put(relative, time);
+    }
+
+    void recordDelete(String relative) {
+        pending.put(relative, DELETED);
+    }
+
+    /**
+     * The non-cache disk usage that was detected when the cache was first scanned, or -1 if it is not known.
+     */
+    long getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * Reads the journal, ignoring any partially written or corrupt lines.
+     *
+     * @return The last access time of every directory in the journal, excluding removed directories
+     */
+    synchronized Map<String, Long> load() throws IOException {
+        Map<String, Long> ret = new HashMap<>();
+        records = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                records++;
+                parseLine(line.toString(StandardCharsets.UTF_8), ret);
+                line.reset();
+            }
+            if (line.size() > 0) {
+                //the last write did not complete
+                Log.warnf("Ignoring partially written record at the end of %s", file);
+            }
+        }
+        return ret;
+    }
+
+    private void parseLine(String line, Map<String, Long> entries) {
+        if (line.startsWith(OVERHEAD_HEADER)) {
+            try {
+                overhead = Long.parseLong(line.substring(OVERHEAD_HEADER.length()));
+            } catch (NumberFormatException e) {
+                Log.warnf("Ignoring corrupt header %s in %s", line, file);
+            }
+            return;
+        }
+        int index = line.indexOf('\t');
+        if (index <= 0 || index == line.length() - 1) {
+            Log.warnf("Ignoring corrupt record %s in %s", line, file);
+            return;
+        }
+        long time;
+        try {
+            time = Long.parseLong(line.substring(0, index));
+        } catch (NumberFormatException e) {
+            Log.warnf("Ignoring corrupt record %s in %s", line, file);
+            return;
+        }
+        String relative = line.substring(index + 1);
+        if (time == DELETED) {
+            entries.remove(relative);
+        } else {
+            entries.put(relative, time);
+        }
+    }
+
+    boolean isJournalFile(Path path) {
+        return path.equals(file) || path.equals(loading) || path.equals(file.resolveSibling(file.getFileName() + ".tmp"));
+    }
+
+    /**
+     * Appends all pending records to the journal.
+     */
+    synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        openWriter();
+        for (var e : pending.entrySet()) {
+            writeRecord(writer, e.getValue(), e.getKey());
+            //if there has been another access in the meantime it will be written on the next flush
+            pending.remove(e.getKey(), e.getValue());
+            records++;
+        }
+        writer.flush();
+    }
+
+    /**
+     * Appends a single record straight away, rather than waiting for the next flush.
+     */
+    synchronized void write(String relative, long time) throws IOException {
+        //the directory may have been removed and recreated since the last flush
+        pending.remove(relative, DELETED);
+        openWriter();
+        writeRecord(writer, time, relative);
+        records++;
+        writer.flush();
+    }
+
+    private void openWriter() throws IOException {
+        if (writer == null) {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * @return true if the journal contains a lot more records than there are live entries
+     */
+    synchronized boolean needsCompaction(int liveEntries) {
+        return records > COMPACT_THRESHOLD && records > liveEntries * 2L;
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the given entries. Pending records are kept, as they may be more recent
+     * than the snapshot, and are appended by the next flush.
+     */
+    synchronized void writeSnapshot(Map<String, Long> entries, long overhead) throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        this.overhead = overhead;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            if (overhead >= 0) {
+                out.write(OVERHEAD_HEADER);
+                out.write(Long.toString(overhead));
+                out.write('\n');
+            }
+            for (var e : entries.entrySet()) {
+                writeRecord(out, e.getValue(), e.getKey());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size();
+    }
+
+    private static void writeRecord(Writer out, long time, String relative) throws IOException {
+        out.write(Long.toString(time));
+        out.write('\t');
+        out.write(relative);
+        out.write('\n');
+    }
+
+    static Map<String, Long> times(Map<String, ? extends Number> entries) {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (var e : entries.entrySet()) {
+            long time = e.getValue().longValue();
+            if (time != DELETED) {
+                ret.put(e.getKey(), time);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
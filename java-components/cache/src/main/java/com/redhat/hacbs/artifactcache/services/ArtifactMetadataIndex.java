@@ -0,0 +1,104 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import static com.redhat.hacbs.artifactcache.services.RepositoryCache.HEADERS;
+import static com.redhat.hacbs.artifactcache.services.RepositoryCache.SHA_1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * In memory index of the metadata that is stored alongside a cached file, namely the sha1, the HTTP headers and the
+ * file size.
+ * <p>
+ * The sidecar files on disk remain the source of truth, so existing cache directories work without any migration.
+ * Entries are loaded from the sidecar files on first access, and replaced whenever a file is downloaded or
+ * transformed, so a cache hit does not need to open and parse the sidecar files every time.
+ * <p>
+ * Files can be evicted by the storage manager, or replaced by another cache sharing the same directory, without this
+ * index being told. Each entry records the modification time and size of the file when it was indexed, and is reloaded
+ * if the file no longer matches.
+ */
+class ArtifactMetadataIndex {
+
+    private final Cache<Path, Entry> entries;
+
+    ArtifactMetadataIndex(long maxEntries) {
+        this.entries = Caffeine.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /**
+     * Gets the metadata for the given file, loading it from the sidecar files if it is not indexed.
+     *
+     * @param file The cached file, which must exist
+     * @return The metadata
+     */
+    ArtifactMetadata get(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Entry existing = entries.getIfPresent(file);
+        if (existing != null && existing.matches(attributes)) {
+            return existing.metadata();
+        }
+        Entry loaded = new Entry(load(file), attributes.lastModifiedTime());
+        entries.put(file, loaded);
+        return loaded.metadata();
+    }
+
+    /**
+     * Indexes the metadata for a file that has just been written
+     */
+    void put(Path file, ArtifactMetadata metadata) throws IOException {
+        entries.put(file, new Entry(metadata, Files.getLastModifiedTime(file)));
+    }
+
+    /**
+     * Removes all entries for files under the given directory
+     */
+    void invalidateDirectory(Path directory) {
+        Path absolute = directory.toAbsolutePath();
+        entries.asMap().keySet().removeIf(p -> p.toAbsolutePath().startsWith(absolute));
+    }
+
+    private static ArtifactMetadata load(Path file) throws IOException {
+        String fileName = file.getFileName().toString();
+        Path headers = file.getParent().resolve(fileName + HEADERS);
+        Path sha1 = file.getParent().resolve(fileName + SHA_1);
+        Map<String, String> headerMap = new HashMap<>();
+        if (Files.exists(headers)) {
+            try (InputStream in = Files.newInputStream(headers)) {
+                Properties p = new Properties();
+                p.load(in);
+                for (var i : p.entrySet()) {
+                    headerMap.put(i.getKey().toString().toLowerCase(), i.getValue().toString());
+                }
+            }
+        }
+        String sha = null;
+        if (Files.exists(sha1)) {
+            sha = Files.readString(sha1, StandardCharsets.UTF_8);
+        }
+        return new ArtifactMetadata(Optional.ofNullable(sha), Map.copyOf(headerMap), Files.size(file));
+    }
+
+    record ArtifactMetadata(Optional<String> sha1, Map<String, String> headers, long size) {
+
+    }
+
+    private record Entry(ArtifactMetadata metadata, FileTime lastModified) {
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == metadata.size() && attributes.lastModifiedTime().equals(lastModified);
+        }
+    }
+}
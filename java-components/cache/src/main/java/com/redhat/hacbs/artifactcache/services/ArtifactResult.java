@@ -1,26 +1,44 @@
 package com.redhat.hacbs.artifactcache.services;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import io.quarkus.logging.Log;
 
 public class ArtifactResult implements AutoCloseable {
 
     private final Path file;
-    private final InputStream data;
+    private InputStream data;
     private final long size;
-    private final Optional<String> expectedSha;
+    private final Supplier<Optional<String>> expectedSha;
     private final Map<String, String> metadata;
     private final List<Runnable> closeTasks;
 
+    /**
+     * @param file The file that holds the data, may be null
+     * @param data The data, may be null if a file is provided, in which case the file is only opened if {@link #getData()}
+     *        is called
+     */
     public ArtifactResult(Path file, InputStream data, long size, Optional<String> expectedSha, Map<String, String> metadata,
             Runnable... closeTasks) {
+        this(file, data, size, () -> expectedSha, metadata, closeTasks);
+    }
+
+    /**
+     * @param expectedSha Provides the expected sha, this is only invoked once the data has been read, which allows the sha
+     *        to be retrieved while the data is being transferred
+     */
+    public ArtifactResult(Path file, InputStream data, long size, Supplier<Optional<String>> expectedSha,
+            Map<String, String> metadata, Runnable... closeTasks) {
         this.file = file;
         this.data = data;
         this.size = size;
@@ -30,6 +48,13 @@ public class ArtifactResult implements AutoCloseable {
     }
 
     public InputStream getData() {
+        if (data == null) {
+            try {
+                data = Files.newInputStream(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return data;
     }
 
@@ -43,11 +68,11 @@ public class ArtifactResult implements AutoCloseable {
         if (file != null) {
             return file;
         }
-        return data;
+        return getData();
     }
 
     public Optional<String> getExpectedSha() {
-        return expectedSha;
+        return expectedSha.get();
     }
 
     public Map<String, String> getMetadata() {
@@ -61,7 +86,9 @@ public class ArtifactResult implements AutoCloseable {
     @Override
     public void close() throws Exception {
         try {
-            data.close();
+            if (data != null) {
+                data.close();
+            }
         } finally {
             for (var i : closeTasks) {
                 try {
@@ -5,26 +5,84 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import jakarta.enterprise.context.control.ActivateRequestContext;
+import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
+import org.eclipse.microprofile.config.ConfigProvider;
+
+import com.redhat.hacbs.artifactcache.services.RepositoryCache.Outcome;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ArcContainer;
+import io.quarkus.arc.ManagedContext;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
 
 /**
  * The cache implementation, this acts as a normal client
+ * <p>
+ * If hedged lookups are enabled then once all the on disk copies have been checked the remote repositories are queried
+ * in parallel. The result from the highest priority repository is still the one that is returned, but the latency of a
+ * miss is the latency of the slowest repository rather than the sum of all of them.
  */
 @Singleton
 @Startup
 public class CacheFacade {
 
+    public static final String HEDGED_LOOKUPS = "cache-hedged-lookups";
+    public static final String HEDGED_LOOKUP_CONCURRENCY = "cache-hedged-lookup-concurrency";
+    public static final String HEDGED_LOOKUP_THREADS = "cache-hedged-lookup-threads";
+    static final int DEFAULT_HEDGED_LOOKUP_CONCURRENCY = 4;
+    static final int DEFAULT_HEDGED_LOOKUP_THREADS = 32;
+    public static final String POLICY_REQUESTS = "cache_policy_requests";
+
+    private static ExecutorService sharedHedgedLookupExecutor;
+
     final Map<String, BuildPolicy> buildPolicies;
     final Map<String, List<RepositoryCache>> buildPolicyCaches;
+    final boolean hedgedLookups;
+    final int hedgedLookupConcurrency;
+    final ExecutorService hedgedLookupExecutor;
+    final MeterRegistry registry;
+    final Map<String, PolicyMetrics> policyMetrics = new ConcurrentHashMap<>();
 
+    @Inject
     public CacheFacade(Map<String, BuildPolicy> buildPolicies) throws Exception {
+        this(buildPolicies,
+                ConfigProvider.getConfig().getOptionalValue(HEDGED_LOOKUPS, Boolean.class).orElse(false),
+                ConfigProvider.getConfig().getOptionalValue(HEDGED_LOOKUP_CONCURRENCY, Integer.class)
+                        .orElse(DEFAULT_HEDGED_LOOKUP_CONCURRENCY));
+    }
+
+    CacheFacade(Map<String, BuildPolicy> buildPolicies, boolean hedgedLookups, int hedgedLookupConcurrency) {
+        this(buildPolicies, hedgedLookups, hedgedLookupConcurrency, Metrics.globalRegistry);
+    }
+
+    CacheFacade(Map<String, BuildPolicy> buildPolicies, boolean hedgedLookups, int hedgedLookupConcurrency,
+            MeterRegistry registry) {
+        this.registry = registry;
         this.buildPolicies = buildPolicies;
         this.buildPolicyCaches = new HashMap<>();
+        this.hedgedLookups = hedgedLookups;
+        this.hedgedLookupConcurrency = Math.max(1, hedgedLookupConcurrency);
+        this.hedgedLookupExecutor = hedgedLookups ? hedgedLookupExecutor(
+                ConfigProvider.getConfig().getOptionalValue(HEDGED_LOOKUP_THREADS, Integer.class)
+                        .orElse(DEFAULT_HEDGED_LOOKUP_THREADS))
+                : null;
 
         for (var e : buildPolicies.entrySet()) {
             List<RepositoryCache> cacheList = new ArrayList<>(e.getValue().getRepositories());
@@ -35,18 +93,21 @@ public class CacheFacade {
     @ActivateRequestContext
     public Optional<ArtifactResult> getArtifactFile(String buildPolicy, String group, String artifact, String version,
             String target, boolean tracked) {
-        //first attempt we only look for cached files, so no network access
-        for (var i : buildPolicyCaches.get(buildPolicy)) {
-            try {
-                var res = i.getArtifactFile(group, artifact, version, target, tracked, false);
-                if (res.isPresent()) {
-                    return res;
-                }
-            } catch (Throwable t) {
-                Log.errorf(t, "Unable to download %s:%s:%s", group, artifact, target);
+        List<RepositoryCache> cacheList = buildPolicyCaches.get(buildPolicy);
+        Outcome[] outcome = new Outcome[1];
+        Optional<ArtifactResult> res;
+        if (hedgedLookups) {
+            //first attempt we only look for cached files, so no network access
+            res = getFirst(cacheList, group, artifact, version, target, tracked, true, outcome);
+            if (res.isEmpty()) {
+                res = getHedged(cacheList, group, artifact, version, target, tracked, outcome);
             }
+        } else {
+            res = getFirst(cacheList, group, artifact, version, target, tracked, false, outcome);
         }
-        return Optional.empty();
+        policyMetrics.computeIfAbsent(buildPolicy, p -> new PolicyMetrics(registry, p))
+                .record(res.isPresent() && (outcome[0] == Outcome.HIT || outcome[0] == Outcome.TRANSFORMED_HIT));
+        return res;
     }
 
     @ActivateRequestContext
@@ -54,27 +115,12 @@ public class CacheFacade {
             String target, boolean tracked) {
         //first attempt we only look for cached files, so no network access
         List<RepositoryCache> cacheList = buildPolicyCaches.get(buildPolicy);
-        for (var i : cacheList) {
-            try {
-                var res = i.getArtifactFile(group, artifact, version, target, tracked, true);
-                if (res.isPresent()) {
-                    return res.map(ArtifactResult::getMetadata);
-                }
-            } catch (Throwable t) {
-                Log.errorf(t, "Unable to download %s:%s:%s", group, artifact, target);
-            }
-        }
-        for (var i : cacheList) {
-            try {
-                var res = i.getArtifactFile(group, artifact, version, target, tracked, false);
-                if (res.isPresent()) {
-                    return res.map(ArtifactResult::getMetadata);
-                }
-            } catch (Throwable t) {
-                Log.errorf(t, "Unable to download %s:%s:%s", group, artifact, target);
-            }
+        var res = getFirst(cacheList, group, artifact, version, target, tracked, true, null);
+        if (res.isEmpty()) {
+            res = hedgedLookups ? getHedged(cacheList, group, artifact, version, target, tracked, null)
+                    : getFirst(cacheList, group, artifact, version, target, tracked, false, null);
         }
-        return Optional.empty();
+        return res.map(ArtifactResult::getMetadata);
     }
 
     @ActivateRequestContext
@@ -89,4 +135,172 @@ public class CacheFacade {
         return results;
     }
 
+    /**
+     * @param outcome Holder for the outcome of the lookup that produced the result, may be null
+     */
+    private Optional<ArtifactResult> getFirst(List<RepositoryCache> cacheList, String group, String artifact, String version,
+            String target, boolean tracked, boolean cacheOnly, Outcome[] outcome) {
+        for (var i : cacheList) {
+            var res = lookup(i, group, artifact, version, target, tracked, cacheOnly, outcome);
+            if (res.isPresent()) {
+                return res;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Queries the repositories in parallel, with at most {@link #hedgedLookupConcurrency} lookups in flight. Results are
+     * consumed in priority order, so a result is only returned once every higher priority repository has missed. Once a
+     * result is found the lower priority lookups are cancelled, so they stop before downloading anything, and any results
+     * they still produce are closed.
+     */
+    private Optional<ArtifactResult> getHedged(List<RepositoryCache> cacheList, String group, String artifact,
+            String version, String target, boolean tracked, Outcome[] outcome) {
+        List<HedgedLookup> lookups = new ArrayList<>(cacheList.size());
+        int next = 0;
+        try {
+            for (; next < Math.min(hedgedLookupConcurrency, cacheList.size()); ++next) {
+                lookups.add(new HedgedLookup(cacheList.get(next), group, artifact, version, target, tracked));
+            }
+            for (var i = 0; i < cacheList.size(); ++i) {
+                Optional<ArtifactResult> res;
+                try {
+                    res = lookups.get(i).future.join();
+                } catch (CompletionException e) {
+                    Log.errorf(e.getCause(), "Unable to download %s:%s:%s", group, artifact, target);
+                    res = Optional.empty();
+                }
+                if (res.isPresent()) {
+                    for (var j = i + 1; j < lookups.size(); ++j) {
+                        lookups.get(j).cancel();
+                    }
+                    if (outcome != null) {
+                        outcome[0] = lookups.get(i).outcome[0];
+                    }
+                    return res;
+                }
+                if (next < cacheList.size()) {
+                    lookups.add(new HedgedLookup(cacheList.get(next), group, artifact, version, target, tracked));
+                    next++;
+                }
+            }
+            return Optional.empty();
+        } catch (RuntimeException e) {
+            lookups.forEach(HedgedLookup::cancel);
+            throw e;
+        }
+    }
+
+    private static void closeResult(ArtifactResult result) {
+        try {
+            result.close();
+        } catch (Throwable t) {
+            Log.error("Failed to close resource", t);
+        }
+    }
+
+    private static Optional<ArtifactResult> lookup(RepositoryCache cache, String group, String artifact, String version,
+            String target, boolean tracked, boolean cacheOnly, Outcome[] outcome) {
+        return lookup(cache, group, artifact, version, target, tracked, cacheOnly, outcome, null);
+    }
+
+    private static Optional<ArtifactResult> lookup(RepositoryCache cache, String group, String artifact, String version,
+            String target, boolean tracked, boolean cacheOnly, Outcome[] outcome, BooleanSupplier cancelled) {
+        try {
+            return cache.getArtifactFile(group, artifact, version, target, tracked, cacheOnly,
+                    outcome == null ? null : o -> outcome[0] = o, cancelled);
+        } catch (Throwable t) {
+            Log.errorf(t, "Unable to download %s:%s:%s", group, artifact, target);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Counts the requests for a build policy that were served from disk. The hit ratio is derived from the counters
+     * when they are queried. Facades with the same policy name share the counters, as they are registered with the same
+     * tags.
+     */
+    static final class PolicyMetrics {
+        final Counter hits;
+        final Counter misses;
+
+        PolicyMetrics(MeterRegistry registry, String policy) {
+            hits = Counter.builder(POLICY_REQUESTS).tags("policy", policy, "result", "hit").register(registry);
+            misses = Counter.builder(POLICY_REQUESTS).tags("policy", policy, "result", "miss").register(registry);
+        }
+
+        void record(boolean hit) {
+            (hit ? hits : misses).increment();
+        }
+    }
+
+    /**
+     * A lookup that runs on the hedged lookup executor.
+     * <p>
+     * Each lookup runs in its own request context rather than sharing the caller's, as it may still be running after the
+     * caller's request has ended. Results are always file backed, so nothing they need is tied to the context.
+     */
+    private final class HedgedLookup {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final Outcome[] outcome = new Outcome[1];
+        final CompletableFuture<Optional<ArtifactResult>> future;
+
+        HedgedLookup(RepositoryCache cache, String group, String artifact, String version, String target,
+                boolean tracked) {
+            future = CompletableFuture.supplyAsync(() -> run(cache, group, artifact, version, target, tracked),
+                    hedgedLookupExecutor);
+        }
+
+        private Optional<ArtifactResult> run(RepositoryCache cache, String group, String artifact, String version,
+                String target, boolean tracked) {
+            if (cancelled.get()) {
+                return Optional.empty();
+            }
+            ArcContainer container = Arc.container();
+            ManagedContext requestContext = container == null ? null : container.requestContext();
+            if (requestContext != null) {
+                requestContext.activate();
+            }
+            try {
+                var res = lookup(cache, group, artifact, version, target, tracked, false, outcome, cancelled::get);
+                if (res.isPresent() && cancelled.get()) {
+                    closeResult(res.get());
+                    return Optional.empty();
+                }
+                return res;
+            } finally {
+                if (requestContext != null) {
+                    requestContext.terminate();
+                }
+            }
+        }
+
+        /**
+         * Stops the lookup before it downloads anything. If it has already produced a result then the result is closed.
+         */
+        void cancel() {
+            cancelled.set(true);
+            //if the result was returned before the flag was set then it is closed here, otherwise the lookup closes it
+            future.thenAccept(r -> r.ifPresent(CacheFacade::closeResult));
+        }
+    }
+
+    private static synchronized ExecutorService hedgedLookupExecutor(int threads) {
+        if (sharedHedgedLookupExecutor == null) {
+            sharedHedgedLookupExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new HedgedThreadFactory());
+        }
+        return sharedHedgedLookupExecutor;
+    }
+
+    private static final class HedgedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "hedged-cache-lookup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -79,6 +79,7 @@ public class RecipeManager {
         return GitScmLocator.builder()
                 .setRecipeGroupManager(recipeGroupManager)
                 .setFallback(cachePomScmLocator)
+                .setCacheRepoTags(true)
                 .build();
     }
 
@@ -88,7 +89,7 @@ public class RecipeManager {
             var path = i.getRepositoryPaths(repo);
             if (path.isPresent()) {
                 try {
-                    ret.add(MavenRepositoryInfoManager.INSTANCE.parse(path.get()));
+                    ret.add(MavenRepositoryInfoManager.INSTANCE.parseCached(path.get()));
                 } catch (IOException e) {
                     Log.errorf(e, "Failed to parse repository info file %s", path.get());
                 }
@@ -104,7 +105,7 @@ public class RecipeManager {
             for (var path : paths) {
                 try {
                     ret.put(path.getFileName().toString().replace(".yaml", ""),
-                            MavenRepositoryInfoManager.INSTANCE.parse(path));
+                            MavenRepositoryInfoManager.INSTANCE.parseCached(path));
                 } catch (IOException e) {
                     Log.errorf(e, "Failed to parse repository info file %s", path);
                 }
@@ -119,7 +120,7 @@ public class RecipeManager {
             var path = i.getBuildToolInfo(name);
             if (path.isPresent()) {
                 try {
-                    for (var b : BuildToolInfoManager.INSTANCE.parse(path.get())) {
+                    for (var b : BuildToolInfoManager.INSTANCE.parseCached(path.get())) {
                         results.put(b.getVersion(), b);
 
                     }
@@ -137,7 +138,7 @@ public class RecipeManager {
         if (path == null) {
             return null;
         }
-        return BuildRecipe.BUILD.getHandler().parse(path);
+        return BuildRecipe.BUILD.getHandler().parseCached(path);
     }
 
     public List<String> getDisabledPlugins(String name) {
@@ -148,7 +149,7 @@ public class RecipeManager {
 
             if (path.isPresent()) {
                 try {
-                    return DisabledPluginsManager.INSTANCE.parse(path.get()).getDisabledPlugins();
+                    return DisabledPluginsManager.INSTANCE.parseCached(path.get()).getDisabledPlugins();
                 } catch (IOException e) {
                     Log.errorf(e, "Failed to parse plugin info file %s", path);
                 }
@@ -15,6 +15,7 @@ import org.eclipse.microprofile.config.Config;
 
 import com.redhat.hacbs.artifactcache.artifactwatch.RebuiltArtifacts;
 import com.redhat.hacbs.artifactcache.services.client.maven.MavenClient;
+import com.redhat.hacbs.artifactcache.services.client.ociregistry.OCILayerStore;
 import com.redhat.hacbs.artifactcache.services.client.ociregistry.OCIRepositoryClient;
 import com.redhat.hacbs.resources.model.v1alpha1.Util;
 import com.redhat.hacbs.resources.model.v1alpha1.jbsconfigstatus.ImageRegistry;
@@ -55,9 +56,15 @@ public class RemoteRepositoryManager {
     StorageManager hacbsStorageMgr;
     private RepositoryCache rebuiltCache;
 
+    /**
+     * Layers are shared between all the OCI repositories, so a layer that is part of several images is only pulled once
+     */
+    OCILayerStore ociLayerStore;
+
     @PostConstruct
     void setup() throws URISyntaxException {
         hacbsStorageMgr = storageManager.resolve(HACBS);
+        ociLayerStore = new OCILayerStore(storageManager.resolve(OCILayerStore.STORE));
         //TODO: this is a bit of a hack
         //we read the deployment config and if present use it to configure the 'rebuilt' repo
         var registryOwner = config.getOptionalValue("registry.owner", String.class);
@@ -90,7 +97,7 @@ public class RemoteRepositoryManager {
                     RepositoryType.OCI_REGISTRY,
                     new OCIRepositoryClient(host + (port == 443 ? "" : ":" + port), registryOwner.get(), repository,
                             token, prependTag,
-                            insecure, rebuiltArtifacts, hacbsStorageMgr));
+                            insecure, rebuiltArtifacts, hacbsStorageMgr, ociLayerStore));
             rebuiltCache = new RepositoryCache(storageManager.resolve("rebuilt"), rebuiltRepo, false);
             remoteStores.put("rebuilt", List.of(rebuiltCache));
         }
@@ -118,7 +125,8 @@ public class RemoteRepositoryManager {
                                 Optional.of(registry.getPrependTag()),
                                 registry.getInsecure(),
                                 rebuiltArtifacts,
-                                hacbsStorageMgr));
+                                hacbsStorageMgr,
+                                ociLayerStore));
 
                 remoteStores.put(name,
                         List.of(new RepositoryCache(storageManager.resolve(name), rebuiltRepo, false)));
@@ -142,23 +150,18 @@ public class RemoteRepositoryManager {
     }
 
     public List<RepositoryCache> getRemoteRepositories(String name) {
-        var store = remoteStores.get(name);
-        if (store == null) {
-            synchronized (remoteStores) {
-                store = remoteStores.get(name);
-                if (store == null) {
-                    var repo = createRepository(name);
-                    store = new ArrayList<>();
-                    if (repo != null) {
-                        for (var i : repo) {
-                            store.add(new RepositoryCache(storageManager.resolve(i.getName()), i, true));
-                        }
-                    }
-                    remoteStores.put(name, store);
-                }
+        return remoteStores.computeIfAbsent(name, this::createRepositoryCaches);
+    }
+
+    private List<RepositoryCache> createRepositoryCaches(String name) {
+        var repo = createRepository(name);
+        List<RepositoryCache> store = new ArrayList<>();
+        if (repo != null) {
+            for (var i : repo) {
+                store.add(new RepositoryCache(storageManager.resolve(i.getName()), i, true));
             }
         }
-        return store;
+        return List.copyOf(store);
     }
 
     private List<Repository> createRepository(String repo) {
@@ -195,7 +198,7 @@ public class RemoteRepositoryManager {
                 String u = owner.get();
 
                 RepositoryClient client = new OCIRepositoryClient(registry, u, repository, token, prependTag,
-                        enableHttpAndInsecureFailover, rebuiltArtifacts, hacbsStorageMgr);
+                        enableHttpAndInsecureFailover, rebuiltArtifacts, hacbsStorageMgr, ociLayerStore);
                 Log.infof("OCI registry %s added with owner %s", registry, u);
                 return List.of(new Repository(repo, "oci://" + registry + "/" + u, RepositoryType.OCI_REGISTRY, client));
             } else {
@@ -13,22 +13,37 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.microprofile.config.ConfigProvider;
 
+import com.redhat.hacbs.artifactcache.services.ArtifactMetadataIndex.ArtifactMetadata;
 import com.redhat.hacbs.classfile.tracker.ClassFileTracker;
 import com.redhat.hacbs.classfile.tracker.HashingOutputStream;
 import com.redhat.hacbs.classfile.tracker.TrackingData;
 import com.redhat.hacbs.common.maven.GAV;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.logging.Log;
 
 /**
@@ -36,12 +51,26 @@ import io.quarkus.logging.Log;
  */
 public class RepositoryCache {
 
-    private static final Object DELETE_IN_PROGRESS = new Object();
     public static final String SHA_1 = ".sha1";
     public static final String DOWNLOADS = ".downloads";
     public static final String HEADERS = ".hacbs-http-headers";
     public static final String ORIGINAL = "original";
     public static final String TRANSFORMED = "transformed";
+    public static final long DEFAULT_METADATA_INDEX_SIZE = 10000;
+    static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    public static final String TRANSFORM_THREADS = "cache-transform-threads";
+    public static final String PRETRANSFORM_THREADS = "cache-pretransform-threads";
+    public static final String PRETRANSFORM_QUEUE_SIZE = "cache-pretransform-queue-size";
+    static final int DEFAULT_PRETRANSFORM_QUEUE_SIZE = 100;
+
+    /**
+     * Executor shared by all caches to instrument the classes in a jar in parallel, created on first use
+     */
+    private static ExecutorService sharedTransformExecutor;
+    /**
+     * Queue shared by all caches to transform jars in the background once they have been downloaded, created on first use
+     */
+    private static TransformationQueue sharedTransformationQueue;
     final StorageManager storageManager;
     final StorageManager downloaded;
     final StorageManager transformed;
@@ -51,37 +80,137 @@ public class RepositoryCache {
     final boolean overwriteExistingBytecodeMarkers;
 
     /**
-     * Tracks in progress downloads to prevent concurrency issues
+     * Tracks in progress downloads, so there is only one upstream fetch per key. The future is completed with the cached
+     * file once the download has been committed, or null if the download did not result in a cached file. The lookup API
+     * is blocking, so other requests for the same key wait for the future on their own thread.
+     */
+    final ConcurrentHashMap<String, CompletableFuture<Path>> inProgressDownloads = new ConcurrentHashMap<>();
+    /**
+     * Tracks in progress transformations, keyed by the tracked jar path. Requests for a jar that is being transformed
+     * wait on the transformation, or run it themselves if it is still queued.
+     */
+    final ConcurrentMap<String, Transformation> inProgressTransformations = new ConcurrentHashMap<>();
+
+    /**
+     * Index of the sha1, headers and size of cached files, so hits do not need to read the sidecar files
      */
-    final ConcurrentMap<String, DownloadingFile> inProgressDownloads = new ConcurrentHashMap<>();
-    final ConcurrentMap<String, CountDownLatch> inProgressTransformations = new ConcurrentHashMap<>();
+    final ArtifactMetadataIndex metadataIndex;
 
     /**
-     * This will either hold {@link #DELETE_IN_PROGRESS} if delete is in progress, or a countdown latch.
-     *
-     * Access must be synchronized on the map itself
+     * The executor used to instrument classes, or null if they are instrumented on the request thread
      */
-    final Map<String, Object> inUseTracker = new HashMap<>();
+    final Executor transformExecutor;
+
+    /**
+     * The queue used to transform jars in the background as soon as they are downloaded, or null if this is disabled
+     */
+    final TransformationQueue transformationQueue;
+
+    /**
+     * Tracks which GAVs are in use, either by readers or by a delete. Entries are only modified through the atomic map
+     * operations, so requests for different GAVs never contend with each other.
+     */
+    final ConcurrentHashMap<String, GavUsage> inUseTracker = new ConcurrentHashMap<>();
+
+    final RepositoryMetrics metrics;
+
+    /**
+     * The result of an artifact lookup, used to tag the request metrics.
+     */
+    public enum Outcome {
+        /**
+         * Served from disk
+         */
+        HIT,
+        /**
+         * A tracked jar served from disk
+         */
+        TRANSFORMED_HIT,
+        /**
+         * Downloaded from the upstream repository, either by this request or by a concurrent one
+         */
+        MISS,
+        /**
+         * Not present in the upstream repository
+         */
+        NOT_FOUND;
+
+        final String tag = name().toLowerCase();
+    }
 
     public RepositoryCache(StorageManager storageManager, Repository repository, boolean overwriteExistingBytecodeMarkers) {
+        this(storageManager, repository, overwriteExistingBytecodeMarkers, Metrics.globalRegistry);
+    }
+
+    public RepositoryCache(StorageManager storageManager, Repository repository, boolean overwriteExistingBytecodeMarkers,
+            MeterRegistry registry) {
         this.storageManager = storageManager;
         this.downloaded = storageManager.resolve(ORIGINAL);
         this.transformed = storageManager.resolve(TRANSFORMED);
         this.tempDownloads = storageManager.resolve(DOWNLOADS);
         this.repository = repository;
         this.overwriteExistingBytecodeMarkers = overwriteExistingBytecodeMarkers;
+        this.metadataIndex = new ArtifactMetadataIndex(ConfigProvider.getConfig()
+                .getOptionalValue("cache-metadata-index-size", Long.class).orElse(DEFAULT_METADATA_INDEX_SIZE));
+        this.transformExecutor = transformExecutor(
+                ConfigProvider.getConfig().getOptionalValue(TRANSFORM_THREADS, Integer.class).orElse(1));
+        this.metrics = new RepositoryMetrics(registry, repository.getName());
+        this.transformationQueue = transformationQueue(
+                ConfigProvider.getConfig().getOptionalValue(PRETRANSFORM_THREADS, Integer.class).orElse(1),
+                ConfigProvider.getConfig().getOptionalValue(PRETRANSFORM_QUEUE_SIZE, Integer.class)
+                        .orElse(DEFAULT_PRETRANSFORM_QUEUE_SIZE));
         Log.infof("Creating cache with path %s", storageManager.toString());
     }
 
+    private static synchronized Executor transformExecutor(int threads) {
+        if (threads <= 1) {
+            return null;
+        }
+        if (sharedTransformExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            sharedTransformExecutor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "cache-transform-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sharedTransformExecutor;
+    }
+
+    private static synchronized TransformationQueue transformationQueue(int threads, int queueSize) {
+        if (threads <= 0) {
+            return null;
+        }
+        if (sharedTransformationQueue == null) {
+            sharedTransformationQueue = new TransformationQueue(threads, queueSize, Metrics.globalRegistry);
+        }
+        return sharedTransformationQueue;
+    }
+
     public Repository getRepository() {
         return repository;
     }
 
     public Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target,
             boolean tracked, boolean cacheOnly) {
+        return getArtifactFile(group, artifact, version, target, tracked, cacheOnly, null);
+    }
+
+    Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target,
+            boolean tracked, boolean cacheOnly, Consumer<Outcome> outcomeListener) {
+        return getArtifactFile(group, artifact, version, target, tracked, cacheOnly, outcomeListener, null);
+    }
+
+    /**
+     * @param outcomeListener Notified of the outcome of the lookup, may be null. Cache only lookups that miss do not have
+     *        an outcome, and neither do lookups that were cancelled.
+     * @param cancelled Checked before anything is downloaded, if it returns true the lookup gives up. May be null.
+     */
+    Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target,
+            boolean tracked, boolean cacheOnly, Consumer<Outcome> outcomeListener, BooleanSupplier cancelled) {
         if (tracked && target.endsWith(".jar.sha1")) {
             var jarResult = getArtifactFile(group, artifact, version, target.substring(0, target.length() - ".sha1".length()),
-                    tracked, cacheOnly);
+                    tracked, cacheOnly, outcomeListener, cancelled);
             if (jarResult.isEmpty()) {
                 return Optional.empty();
             }
@@ -102,9 +231,20 @@ public class RepositoryCache {
             //TODO: we don't really care about the policy when using standard maven repositories
             String targetFile = group.replace('.', File.separatorChar) + File.separator + artifact
                     + File.separator + version + File.separator + target;
-            return handleFile(targetFile, group.replace(File.separatorChar, '.') + ":" + artifact + ":" + version,
+            String type = RepositoryMetrics.artifactType(target);
+            long start = System.nanoTime();
+            Outcome[] outcome = new Outcome[1];
+            var result = handleFile(targetFile, group.replace(File.separatorChar, '.') + ":" + artifact + ":" + version,
                     (c) -> c.getArtifactFile(group, artifact, version, target), tracked, cacheOnly,
-                    extractClassifier(artifact, version, target));
+                    extractClassifier(artifact, version, target), type, outcome, cancelled);
+            if (outcome[0] != null) {
+                metrics.timer(RepositoryMetrics.ARTIFACT_REQUESTS, type, outcome[0].tag)
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (outcomeListener != null) {
+                    outcomeListener.accept(outcome[0]);
+                }
+            }
+            return result;
         }
     }
 
@@ -117,13 +257,18 @@ public class RepositoryCache {
         }
     }
 
+    /**
+     * @param outcome Holder that the outcome of the lookup is stored in, this is not set for cache only misses or
+     *        cancelled lookups
+     */
     private Optional<ArtifactResult> handleFile(String targetFile, String gav,
             Function<RepositoryClient, Optional<ArtifactResult>> clientInvocation, boolean tracked, boolean cacheOnly,
-            String classifier) {
+            String classifier, String type, Outcome[] outcome, BooleanSupplier cancelled) {
         try {
             var check = inProgressDownloads.get(targetFile);
             if (check != null) {
-                check.awaitReady();
+                metrics.counter(RepositoryMetrics.COALESCED_DOWNLOADS, type).increment();
+                awaitDownload(check);
             }
             Path actual = downloaded.accessFile(targetFile);
             Path trackedFile = transformed.accessFile(targetFile);
@@ -132,97 +277,134 @@ public class RepositoryCache {
                 //it should not matter as we do an atomic move, but better to be safe
                 check = inProgressDownloads.get(targetFile);
                 if (check != null) {
-                    check.awaitReady();
+                    awaitDownload(check);
+                }
+                var res = handleDownloadedFile(actual, trackedFile, tracked, gav, classifier, type, new GavLock(gav));
+                if (res != null) {
+                    outcome[0] = tracked && targetFile.endsWith(".jar") ? Outcome.TRANSFORMED_HIT : Outcome.HIT;
+                    return res;
                 }
-                return handleDownloadedFile(actual, trackedFile, tracked, gav, classifier);
             }
-            if (cacheOnly) {
+            if (cacheOnly || isCancelled(cancelled)) {
                 return Optional.empty();
             }
-            DownloadingFile newFile = new DownloadingFile(targetFile);
-            var existing = inProgressDownloads.putIfAbsent(targetFile, newFile);
-            while (existing != null) {
+            CompletableFuture<Path> newDownload = new CompletableFuture<>();
+            var existing = inProgressDownloads.computeIfAbsent(targetFile, k -> newDownload);
+            outcome[0] = Outcome.MISS;
+            while (existing != newDownload) {
+                metrics.counter(RepositoryMetrics.COALESCED_DOWNLOADS, type).increment();
                 //another thread is downloading this
-                existing.awaitReady();
-                //the result may have been a miss, so we need to check the file is there
+                //the result may have been a miss, in which case the future completes with null
                 //if the file is not there it may mean that the sha1 was wrong
                 //so we never cache it
-                if (Files.exists(actual)) {
-                    return handleDownloadedFile(actual, trackedFile, tracked, gav, classifier);
+                Path result = awaitDownload(existing);
+                if (result != null && Files.exists(actual)) {
+                    var res = handleDownloadedFile(actual, trackedFile, tracked, gav, classifier, type, new GavLock(gav));
+                    if (res != null) {
+                        return res;
+                    }
                 }
-                existing = inProgressDownloads.putIfAbsent(targetFile, newFile);
+                existing = inProgressDownloads.computeIfAbsent(targetFile, k -> newDownload);
             }
-            return newFile.download(clientInvocation, repository.getClient(), actual, trackedFile,
-                    tempDownloads, tracked, gav, classifier);
+            var res = download(targetFile, newDownload, clientInvocation, repository.getClient(), actual, trackedFile,
+                    tempDownloads, tracked, gav, classifier, type, cancelled);
+            if (res.isEmpty()) {
+                outcome[0] = isCancelled(cancelled) ? null : Outcome.NOT_FOUND;
+            }
+            return res;
 
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static boolean isCancelled(BooleanSupplier cancelled) {
+        return cancelled != null && cancelled.getAsBoolean();
+    }
+
+    /**
+     * Waits for an in progress download to complete, blocking the calling thread.
+     *
+     * @return The path of the cached file, or null if the download did not result in a cached file
+     */
+    private static Path awaitDownload(CompletableFuture<Path> download) {
+        try {
+            return download.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     public void deleteGav(String gav) {
+        GavUsage deletion = new GavUsage(true);
         while (true) {
-            synchronized (inUseTracker) {
-                Object res = inUseTracker.get(gav);
-                if (res == DELETE_IN_PROGRESS) {
-                    //already deleting
-                    return;
-                } else if (res != null) {
-                    try {
-                        inUseTracker.wait();
-                        continue;
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
+            GavUsage existing = inUseTracker.compute(gav, (k, v) -> {
+                if (v == null) {
+                    return deletion;
+                } else if (!v.deleting) {
+                    //stop new readers from starting, so a steady stream of requests cannot starve the delete
+                    v.deleteWaiting = true;
                 }
-                inUseTracker.put(gav, DELETE_IN_PROGRESS);
+                return v;
+            });
+            if (existing == deletion) {
                 break;
+            } else if (existing.deleting) {
+                //already deleting
+                return;
             }
+            existing.awaitRemoval();
         }
         try {
             var parsed = GAV.parse(gav);
             String targetFile = parsed.getGroupId().replaceAll("\\.", File.separator) + File.separator + parsed.getArtifactId()
                     + File.separator + parsed.getVersion();
-            storageManager.delete(targetFile);
-        } finally {
-            synchronized (inUseTracker) {
-                inUseTracker.remove(gav);
-                inUseTracker.notifyAll();
+            //the artifacts live under the original and transformed directories, not the repository root
+            for (var dir : List.of(downloaded, transformed)) {
+                Path gavDir = Path.of(dir.path()).resolve(targetFile);
+                if (Files.exists(gavDir)) {
+                    dir.delete(targetFile);
+                }
+                metadataIndex.invalidateDirectory(gavDir);
             }
+        } finally {
+            inUseTracker.remove(gav, deletion);
+            deletion.removed.complete(null);
         }
 
     }
 
+    /**
+     * Returns the result for a file that has been downloaded, transforming it if required.
+     *
+     * @param lock The lock for the GAV, this is owned by the result or released if no result is returned
+     * @return The result, or null if the file was deleted before the GAV could be locked
+     */
     private Optional<ArtifactResult> handleDownloadedFile(Path downloaded, Path trackedFileTarget, boolean tracked, String gav,
-            String classifier)
-            throws IOException, InterruptedException {
-        var lock = new GavLock(gav);
+            String classifier, String type, GavLock lock)
+            throws IOException {
         try {
-
+            if (!Files.exists(downloaded)) {
+                //deleted before we acquired the lock
+                lock.run();
+                return null;
+            }
             boolean jarFile = downloaded.toString().endsWith(".jar");
             //same headers for both
             String fileName = downloaded.getFileName().toString();
-            Path headers = downloaded.getParent().resolve(fileName + HEADERS);
-            Path originalSha1 = downloaded.getParent().resolve(fileName + SHA_1);
-            Map<String, String> headerMap = new HashMap<>();
-            if (Files.exists(headers)) {
-                try (InputStream in = Files.newInputStream(headers)) {
-                    Properties p = new Properties();
-                    p.load(in);
-                    for (var i : p.entrySet()) {
-                        headerMap.put(i.getKey().toString().toLowerCase(), i.getValue().toString());
-                    }
-                }
-            }
+            var original = metadataIndex.get(downloaded);
             if (!jarFile || !tracked) {
-                String sha = null;
-                if (Files.exists(originalSha1)) {
-                    sha = Files.readString(originalSha1, StandardCharsets.UTF_8);
+                if (jarFile && transformationQueue != null) {
+                    //if it is waiting to be transformed then it has been requested again, so move it up the queue
+                    var pending = inProgressTransformations.get(trackedFileTarget.toString());
+                    if (pending != null) {
+                        transformationQueue.requested(pending);
+                    }
                 }
                 return Optional
-                        .of(new ArtifactResult(downloaded, Files.newInputStream(downloaded), Files.size(downloaded),
-                                Optional.ofNullable(sha),
-                                headerMap, lock));
+                        .of(new ArtifactResult(downloaded, null, original.size(),
+                                original.sha1(),
+                                original.headers(), lock));
             }
 
             Path instrumentedSha;
@@ -235,64 +417,40 @@ public class RepositoryCache {
                 trackedJarFile = trackedFileTarget.getParent()
                         .resolve(fileName.substring(0, fileName.length() - SHA_1.length()));
             }
-            CountDownLatch existing = inProgressTransformations.get(gav);
-            if (existing != null) {
-                existing.await();
-            }
-            if (!Files.exists(trackedJarFile)) {
-                CountDownLatch myLatch = new CountDownLatch(1);
-                existing = inProgressTransformations.putIfAbsent(gav, myLatch);
+            String key = trackedJarFile.toString();
+            Transformation existing = inProgressTransformations.get(key);
+            boolean attempted = existing != null && awaitTransformation(existing, type);
+            while (!attempted && !Files.exists(trackedJarFile)) {
+                Transformation transformation = new Transformation(key, downloaded, trackedJarFile, instrumentedSha, gav,
+                        classifier, type);
+                existing = inProgressTransformations.putIfAbsent(key, transformation);
                 if (existing != null) {
-                    existing.await();
+                    attempted = awaitTransformation(existing, type);
                 } else {
-                    Files.createDirectories(trackedJarFile.getParent());
-                    try (OutputStream out = Files.newOutputStream(trackedJarFile); var in = Files.newInputStream(downloaded)) {
-                        HashingOutputStream hashingOutputStream = new HashingOutputStream(out);
-                        Map<String, String> attributes = StringUtils.isNotBlank(classifier) ? Map.of("classifier", classifier)
-                                : Map.of();
-                        ClassFileTracker.addTrackingDataToJar(in,
-                                new TrackingData(gav, repository.getName(), attributes),
-                                hashingOutputStream,
-                                overwriteExistingBytecodeMarkers);
-                        hashingOutputStream.close();
-
-                        Files.writeString(instrumentedSha, hashingOutputStream.getHash());
-                    } catch (Throwable e) {
-                        Log.errorf(e, "Failed to track jar %s", downloaded);
-                        Files.delete(trackedJarFile);
-                    } finally {
-                        myLatch.countDown();
-                        inProgressTransformations.remove(gav);
-                    }
+                    transformation.run();
+                    attempted = true;
                 }
             }
             if (Files.exists(trackedJarFile)) {
                 if (jarFile) {
-                    String sha = null;
-                    if (Files.exists(instrumentedSha)) {
-                        sha = Files.readString(instrumentedSha, StandardCharsets.UTF_8);
-                    }
+                    var instrumented = metadataIndex.get(trackedJarFile);
                     return Optional
-                            .of(new ArtifactResult(trackedJarFile, Files.newInputStream(trackedJarFile),
-                                    Files.size(trackedJarFile),
-                                    Optional.ofNullable(sha), headerMap, lock));
+                            .of(new ArtifactResult(trackedJarFile, null,
+                                    instrumented.size(),
+                                    instrumented.sha1(), original.headers(), lock));
                 } else {
                     return Optional
-                            .of(new ArtifactResult(instrumentedSha, Files.newInputStream(instrumentedSha),
+                            .of(new ArtifactResult(instrumentedSha, null,
                                     Files.size(instrumentedSha),
                                     Optional.empty(), Map.of(), lock));
                 }
             }
 
-            String sha = null;
-            if (Files.exists(originalSha1)) {
-                sha = Files.readString(originalSha1, StandardCharsets.UTF_8);
-            }
             return Optional
-                    .of(new ArtifactResult(downloaded, Files.newInputStream(downloaded), Files.size(downloaded),
-                            Optional.ofNullable(sha),
-                            headerMap, lock));
-        } catch (IOException | RuntimeException | InterruptedException t) {
+                    .of(new ArtifactResult(downloaded, null, original.size(),
+                            original.sha1(),
+                            original.headers(), lock));
+        } catch (IOException | RuntimeException t) {
             lock.run();
             throw t;
         } catch (Throwable t) {
@@ -302,187 +460,366 @@ public class RepositoryCache {
     }
 
     /**
-     * Represents a file that is in the process of being downloaded into the cache
+     * Waits for a transformation to complete, if it is still queued then it is run on the current thread instead.
+     *
+     * @return false if the transformation was skipped without being attempted
      */
-    final class DownloadingFile {
-
-        final String key;
-        boolean ready = false;
-        Throwable problem;
+    private boolean awaitTransformation(Transformation transformation, String type) {
+        if (transformationQueue != null && transformationQueue.claim(transformation)) {
+            transformation.run();
+            return true;
+        }
+        Timer.Sample sample = Timer.start();
+        boolean attempted = transformation.future.join();
+        sample.stop(metrics.timer(RepositoryMetrics.TRANSFORMATION_WAIT, type));
+        return attempted;
+    }
 
-        DownloadingFile(String key) {
-            this.key = key;
+    /**
+     * Queues a jar that has just been downloaded to be transformed in the background, so it is ready by the time a tracked
+     * request needs it.
+     */
+    private void preTransform(Path downloaded, Path trackedJarFile, String gav, String classifier, String type) {
+        if (transformationQueue == null || Files.exists(trackedJarFile)) {
+            return;
         }
+        String key = trackedJarFile.toString();
+        Transformation transformation = new Transformation(key, downloaded, trackedJarFile,
+                trackedJarFile.getParent().resolve(downloaded.getFileName().toString() + SHA_1), gav, classifier, type);
+        if (inProgressTransformations.putIfAbsent(key, transformation) == null
+                && !transformationQueue.submit(transformation)) {
+            //the queue is full, it will be transformed when it is requested
+            transformation.skip();
+        }
+    }
 
-        void awaitReady() {
-            synchronized (this) {
-                while (!ready) {
+    /**
+     * Downloads a file into the cache. Other requests for the same file will wait on the provided future, which is
+     * completed with the cached path as soon as the file has been committed, or null if nothing was cached.
+     */
+    private Optional<ArtifactResult> download(String key, CompletableFuture<Path> future,
+            Function<RepositoryClient, Optional<ArtifactResult>> clientInvocation,
+            RepositoryClient repositoryClient,
+            Path downloadTarget,
+            Path trackedFile,
+            StorageManager downloadTempDir,
+            boolean tracked,
+            String gav,
+            String classifier,
+            String type,
+            BooleanSupplier cancelled) {
+        GavLock lock = new GavLock(gav);
+        Path partFile = null;
+        Path committed = null;
+        Throwable failure = null;
+        try {
+            Optional<ArtifactResult> result = clientInvocation.apply(repositoryClient);
+            if (result.isPresent() && isCancelled(cancelled)) {
+                //the body has not been read yet, so nothing has been downloaded
+                result.get().close();
+                result = Optional.empty();
+            }
+            if (result.isPresent()) {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                Path tempFile = Files.createTempFile(downloadTempDir.accessDirectory("downloads"), "download", ".part");
+                partFile = tempFile;
+                InputStream in = result.get().getData();
+                try (OutputStream out = Files.newOutputStream(tempFile)) {
+                    byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+                    int r;
+                    while ((r = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, r);
+                        md.update(buffer, 0, r);
+                        downloadTempDir.bytesWritten(r);
+                    }
+                } finally {
                     try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
+                        in.close();
+                    } catch (IOException e) {
+                        Log.errorf(e, "Failed to close HTTP stream");
                     }
                 }
-                if (problem != null) {
-                    throw new RuntimeException(problem);
-                }
-            }
-        }
-
-        Optional<ArtifactResult> download(Function<RepositoryClient, Optional<ArtifactResult>> clientInvocation,
-                RepositoryClient repositoryClient,
-                Path downloadTarget,
-                Path trackedFile,
-                StorageManager downloadTempDir,
-                boolean tracked,
-                String gav,
-                String classifier) {
-            GavLock lock = new GavLock(gav);
-            try {
-                Optional<ArtifactResult> result = clientInvocation.apply(repositoryClient);
-                if (result.isPresent()) {
-                    MessageDigest md = MessageDigest.getInstance("SHA-1");
-                    Path tempFile = Files.createTempFile(downloadTempDir.accessDirectory("downloads"), "download", ".part");
-                    InputStream in = result.get().getData();
-                    try (OutputStream out = Files.newOutputStream(tempFile)) {
-                        byte[] buffer = new byte[1024];
-                        int r;
-                        while ((r = in.read(buffer)) > 0) {
-                            out.write(buffer, 0, r);
-                            md.update(buffer, 0, r);
-                        }
-                    } finally {
-                        try {
-                            in.close();
-                        } catch (IOException e) {
-                            Log.errorf(e, "Failed to close HTTP stream");
-                        }
+                if (result.get().getExpectedSha().isPresent()) {
+                    byte[] digest = md.digest();
+                    StringBuilder sb = new StringBuilder(40);
+                    for (int i = 0; i < digest.length; ++i) {
+                        sb.append(Integer.toHexString((digest[i] & 0xFF) | 0x100).substring(1, 3));
                     }
-                    if (result.get().getExpectedSha().isPresent()) {
-                        byte[] digest = md.digest();
-                        StringBuilder sb = new StringBuilder(40);
-                        for (int i = 0; i < digest.length; ++i) {
-                            sb.append(Integer.toHexString((digest[i] & 0xFF) | 0x100).substring(1, 3));
-                        }
-                        String hash = sb.toString();
-
-                        if (!hash.equalsIgnoreCase(result.get().getExpectedSha().get())) {
-                            Log.error("Filed to cache " + downloadTarget + " from " + repositoryClient.getName()
-                                    + " calculated sha '" + hash
-                                    + "' did not match expected '" + result.get().getExpectedSha().get() + "'");
-                            if (tracked) {
-                                Path tempTransformedFile = Files.createTempFile(downloadTempDir.accessDirectory("downloads"),
-                                        "transformed", ".part");
-                                try (var inFromFile = Files.newInputStream(tempFile);
-                                        var transformedOut = Files.newOutputStream(tempTransformedFile)) {
-                                    Map<String, String> attributes = StringUtils.isNotBlank(classifier)
-                                            ? Map.of("classifier", classifier)
-                                            : Map.of();
-                                    ClassFileTracker.addTrackingDataToJar(inFromFile,
-                                            new TrackingData(gav, repository.getName(), attributes),
-                                            transformedOut, overwriteExistingBytecodeMarkers);
-                                }
-                                Files.delete(tempFile);
-                                return Optional
-                                        .of(new ArtifactResult(tempTransformedFile, Files.newInputStream(tempTransformedFile),
-                                                Files.size(tempTransformedFile),
-                                                Optional.empty(), result.get().getMetadata(), () -> {
-                                                    try {
-                                                        Files.delete(tempTransformedFile);
-                                                    } catch (IOException e) {
-                                                        throw new RuntimeException(e);
-                                                    }
-                                                }, lock));
-
-                            } else {
-                                return Optional
-                                        .of(new ArtifactResult(tempFile, Files.newInputStream(tempFile), Files.size(tempFile),
-                                                Optional.empty(), result.get().getMetadata(), () -> {
-                                                    try {
-                                                        Files.delete(tempFile);
-                                                    } catch (IOException e) {
-                                                        throw new RuntimeException(e);
-                                                    }
-                                                }, lock));
+                    String hash = sb.toString();
+
+                    if (!hash.equalsIgnoreCase(result.get().getExpectedSha().get())) {
+                        Log.error("Filed to cache " + downloadTarget + " from " + repositoryClient.getName()
+                                + " calculated sha '" + hash
+                                + "' did not match expected '" + result.get().getExpectedSha().get() + "'");
+                        if (tracked) {
+                            Path tempTransformedFile = Files.createTempFile(downloadTempDir.accessDirectory("downloads"),
+                                    "transformed", ".part");
+                            try (var transformedOut = Files.newOutputStream(tempTransformedFile)) {
+                                Map<String, String> attributes = StringUtils.isNotBlank(classifier)
+                                        ? Map.of("classifier", classifier)
+                                        : Map.of();
+                                ClassFileTracker.addTrackingDataToJar(tempFile,
+                                        new TrackingData(gav, repository.getName(), attributes),
+                                        transformedOut, overwriteExistingBytecodeMarkers, transformExecutor);
                             }
+                            Files.delete(tempFile);
+                            return Optional
+                                    .of(new ArtifactResult(tempTransformedFile, null,
+                                            Files.size(tempTransformedFile),
+                                            Optional.empty(), result.get().getMetadata(), () -> {
+                                                try {
+                                                    Files.delete(tempTransformedFile);
+                                                } catch (IOException e) {
+                                                    throw new RuntimeException(e);
+                                                }
+                                            }, lock));
+
+                        } else {
+                            return Optional
+                                    .of(new ArtifactResult(tempFile, null, Files.size(tempFile),
+                                            Optional.empty(), result.get().getMetadata(), () -> {
+                                                try {
+                                                    Files.delete(tempFile);
+                                                } catch (IOException e) {
+                                                    throw new RuntimeException(e);
+                                                }
+                                            }, lock));
                         }
                     }
+                }
 
-                    Files.createDirectories(downloadTarget.getParent());
-                    Files.move(tempFile, downloadTarget, StandardCopyOption.ATOMIC_MOVE);
+                Files.createDirectories(downloadTarget.getParent());
+                Files.move(tempFile, downloadTarget, StandardCopyOption.ATOMIC_MOVE);
 
-                    if (result.get().getExpectedSha().isPresent()) {
-                        Files.writeString(downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + SHA_1),
-                                result.get().getExpectedSha().get(), StandardCharsets.UTF_8);
-                    }
-                    Properties p = new Properties();
-                    for (var e : result.get().getMetadata().entrySet()) {
-                        p.put(e.getKey().toLowerCase(), e.getValue());
-                    }
-                    p.remove("content-length"); //use the actual on disk length
-                    try (OutputStream out = Files.newOutputStream(
-                            downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + HEADERS))) {
-                        p.store(out, "");
+                if (result.get().getExpectedSha().isPresent()) {
+                    Files.writeString(downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + SHA_1),
+                            result.get().getExpectedSha().get(), StandardCharsets.UTF_8);
+                }
+                Properties p = new Properties();
+                for (var e : result.get().getMetadata().entrySet()) {
+                    p.put(e.getKey().toLowerCase(), e.getValue());
+                }
+                p.remove("content-length"); //use the actual on disk length
+                try (OutputStream out = Files.newOutputStream(
+                        downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + HEADERS))) {
+                    p.store(out, "");
+                }
+                Map<String, String> headerMap = new HashMap<>();
+                for (var e : p.entrySet()) {
+                    headerMap.put(e.getKey().toString(), e.getValue().toString());
+                }
+                metadataIndex.put(downloadTarget, new ArtifactMetadata(result.get().getExpectedSha(), Map.copyOf(headerMap),
+                        Files.size(downloadTarget)));
+                if (downloadTarget.toString().endsWith(".jar")) {
+                    preTransform(downloadTarget, trackedFile, gav, classifier, type);
+                }
+                committed = downloadTarget;
+            } else {
+                lock.run();
+            }
+        } catch (Throwable e) {
+            //the lock has not been handed over yet
+            lock.run();
+            failure = e;
+            Log.errorf(e, "Failed to download artifact %s from %s", downloadTarget, repositoryClient);
+            if (partFile != null) {
+                try {
+                    Files.deleteIfExists(partFile);
+                } catch (IOException ex) {
+                    Log.errorf(ex, "Failed to delete %s", partFile);
+                }
+            }
+        } finally {
+            //waiting requests are released as soon as the file is committed, before any transformation happens
+            inProgressDownloads.remove(key, future);
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(committed);
+            }
+        }
+        if (committed == null) {
+            return Optional.empty();
+        }
+        try {
+            //the lock is handed over to the result, it is released by handleDownloadedFile if it fails
+            return handleDownloadedFile(committed, trackedFile, tracked, gav, classifier, type, lock);
+        } catch (Throwable e) {
+            Log.errorf(e, "Failed to handle downloaded artifact %s from %s", downloadTarget, repositoryClient);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * A transformation of a downloaded jar. This is either run by the request that needs it, or queued to run in the
+     * background, and other requests for the same jar wait on the future. The future is completed with false if the
+     * transformation was skipped without being attempted.
+     */
+    final class Transformation implements TransformationQueue.Task {
+        final String key;
+        final Path downloaded;
+        final Path trackedJarFile;
+        final Path instrumentedSha;
+        final String gav;
+        final String classifier;
+        final String type;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Transformation(String key, Path downloaded, Path trackedJarFile, Path instrumentedSha, String gav, String classifier,
+                String type) {
+            this.key = key;
+            this.downloaded = downloaded;
+            this.trackedJarFile = trackedJarFile;
+            this.instrumentedSha = instrumentedSha;
+            this.gav = gav;
+            this.classifier = classifier;
+            this.type = type;
+        }
+
+        /**
+         * Runs the transformation, the caller must hold the lock for the GAV.
+         */
+        void run() {
+            Path tempFile = null;
+            try {
+                if (Files.exists(downloaded) && !Files.exists(trackedJarFile)) {
+                    Files.createDirectories(trackedJarFile.getParent());
+                    metrics.counter(RepositoryMetrics.TRANSFORMATIONS, type).increment();
+                    //written to a temp file and moved into place, so readers never see a partially written jar
+                    tempFile = Files.createTempFile(trackedJarFile.getParent(), trackedJarFile.getFileName().toString(),
+                            ".part");
+                    String hash;
+                    try (OutputStream out = Files.newOutputStream(tempFile)) {
+                        HashingOutputStream hashingOutputStream = new HashingOutputStream(out);
+                        Map<String, String> attributes = StringUtils.isNotBlank(classifier)
+                                ? Map.of("classifier", classifier)
+                                : Map.of();
+                        ClassFileTracker.addTrackingDataToJar(downloaded,
+                                new TrackingData(gav, repository.getName(), attributes),
+                                hashingOutputStream,
+                                overwriteExistingBytecodeMarkers, transformExecutor);
+                        hashingOutputStream.close();
+                        hash = hashingOutputStream.getHash();
                     }
-                    return handleDownloadedFile(downloadTarget, trackedFile, tracked, gav, classifier);
+                    Files.writeString(instrumentedSha, hash);
+                    Files.move(tempFile, trackedJarFile, StandardCopyOption.ATOMIC_MOVE);
+                    tempFile = null;
+                    long size = Files.size(trackedJarFile);
+                    storageManager.bytesWritten(size);
+                    metadataIndex.put(trackedJarFile, new ArtifactMetadata(Optional.of(hash), Map.of(), size));
                 }
-                return Optional.empty();
             } catch (Throwable e) {
-                lock.run();
-                synchronized (this) {
-                    problem = e;
+                Log.errorf(e, "Failed to track jar %s", downloaded);
+                if (tempFile != null) {
+                    try {
+                        Files.deleteIfExists(tempFile);
+                        Files.deleteIfExists(instrumentedSha);
+                    } catch (IOException ex) {
+                        Log.errorf(ex, "Failed to delete %s", tempFile);
+                    }
                 }
-                Log.errorf(e, "Failed to download artifact %s from %s", downloadTarget, repositoryClient);
-                return Optional.empty();
             } finally {
-                inProgressDownloads.remove(key);
-                synchronized (this) {
-                    ready = true;
-                    notifyAll();
-                }
+                inProgressTransformations.remove(key, this);
+                future.complete(true);
+            }
+        }
+
+        void skip() {
+            inProgressTransformations.remove(key, this);
+            future.complete(false);
+        }
+
+        @Override
+        public void runInBackground() {
+            //we can't wait for the lock, as a request waiting on this may be holding it while a delete is pending
+            GavLock lock = new GavLock(gav, false);
+            if (!lock.acquired) {
+                skip();
+                return;
+            }
+            try {
+                run();
+            } finally {
+                lock.run();
             }
         }
     }
 
     class GavLock implements Runnable {
         final String gav;
-        boolean closed;
+        final AtomicBoolean closed = new AtomicBoolean();
+        final boolean acquired;
 
         GavLock(String gav) {
+            this(gav, true);
+        }
+
+        /**
+         * @param wait If this should wait for a pending delete, otherwise {@link #acquired} is false if there is one
+         */
+        GavLock(String gav, boolean wait) {
             this.gav = gav;
             while (true) {
-                synchronized (inUseTracker) {
-                    Object results = inUseTracker.get(gav);
-                    if (results == DELETE_IN_PROGRESS) {
-                        try {
-                            inUseTracker.wait();
-                            continue;
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                    } else if (results == null) {
-                        results = new AtomicInteger();
-                        inUseTracker.put(gav, results);
+                boolean[] acquired = new boolean[1];
+                GavUsage usage = inUseTracker.compute(gav, (k, v) -> {
+                    if (v == null) {
+                        v = new GavUsage(false);
+                    }
+                    if (!v.deleting && !v.deleteWaiting) {
+                        v.readers++;
+                        acquired[0] = true;
                     }
-                    AtomicInteger count = (AtomicInteger) results;
-                    count.incrementAndGet();
+                    return v;
+                });
+                if (acquired[0]) {
                     break;
                 }
+                if (!wait) {
+                    closed.set(true);
+                    this.acquired = false;
+                    return;
+                }
+                usage.awaitRemoval();
             }
+            this.acquired = true;
         }
 
         @Override
         public void run() {
-            synchronized (inUseTracker) {
-                if (closed) {
-                    return;
-                }
-                closed = true;
-                AtomicInteger count = (AtomicInteger) inUseTracker.get(gav);
-                if (count.decrementAndGet() == 0) {
-                    inUseTracker.remove(gav);
-                    inUseTracker.notifyAll();
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            inUseTracker.computeIfPresent(gav, (k, v) -> {
+                if (--v.readers == 0) {
+                    v.removed.complete(null);
+                    return null;
                 }
+                return v;
+            });
+        }
+    }
+
+    /**
+     * The usage of a GAV, this either represents a delete in progress or a set of readers. The mutable fields are only
+     * accessed inside the atomic map operations on {@link #inUseTracker}.
+     */
+    static final class GavUsage {
+        final boolean deleting;
+        final CompletableFuture<Void> removed = new CompletableFuture<>();
+        int readers;
+        boolean deleteWaiting;
+
+        GavUsage(boolean deleting) {
+            this.deleting = deleting;
+        }
+
+        void awaitRemoval() {
+            try {
+                removed.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
         }
     }
@@ -0,0 +1,91 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The meters for a single repository, tagged with the repository name and the artifact type.
+ * <p>
+ * The repositories are not CDI beans, so by default the meters are registered with the global registry, which Quarkus
+ * adds its own registry to. Meters are cached so that recording does not need to go through the registry on every
+ * request.
+ * <p>
+ * There is a set of meters per repository, type and result, so percentile histograms are not published by default as
+ * they multiply the number of time series. They can be enabled for specific meters with a {@code MeterFilter}.
+ */
+public class RepositoryMetrics {
+
+    public static final String REPOSITORY = "repository";
+    public static final String TYPE = "type";
+    public static final String RESULT = "result";
+
+    public static final String ARTIFACT_REQUESTS = "cache_artifact_requests";
+    public static final String COALESCED_DOWNLOADS = "cache_coalesced_downloads";
+    public static final String TRANSFORMATION_WAIT = "cache_transformation_wait";
+    public static final String TRANSFORMATIONS = "cache_transformations";
+    public static final String UPSTREAM_REQUESTS = "cache_upstream_requests";
+    public static final String UPSTREAM_BYTES = "cache_upstream_bytes";
+
+    private static final int MAX_TYPE_LENGTH = 10;
+
+    private final MeterRegistry registry;
+    private final String repository;
+    private final ConcurrentHashMap<String, Meter> meters = new ConcurrentHashMap<>();
+
+    public RepositoryMetrics(String repository) {
+        this(Metrics.globalRegistry, repository);
+    }
+
+    public RepositoryMetrics(MeterRegistry registry, String repository) {
+        this.registry = registry;
+        this.repository = repository;
+    }
+
+    public Timer timer(String name, String type) {
+        return (Timer) meters.computeIfAbsent(name + '\0' + type, k -> Timer.builder(name)
+                .tags(REPOSITORY, repository, TYPE, type)
+                .register(registry));
+    }
+
+    public Timer timer(String name, String type, String result) {
+        return (Timer) meters.computeIfAbsent(name + '\0' + type + '\0' + result, k -> Timer.builder(name)
+                .tags(REPOSITORY, repository, TYPE, type, RESULT, result)
+                .register(registry));
+    }
+
+    public DistributionSummary summary(String name, String type) {
+        return (DistributionSummary) meters.computeIfAbsent(name + '\0' + type, k -> DistributionSummary.builder(name)
+                .baseUnit("bytes")
+                .tags(REPOSITORY, repository, TYPE, type)
+                .register(registry));
+    }
+
+    public Counter counter(String name, String type) {
+        return (Counter) meters.computeIfAbsent(name + '\0' + type, k -> Counter.builder(name)
+                .tags(REPOSITORY, repository, TYPE, type)
+                .register(registry));
+    }
+
+    /**
+     * Returns the artifact type used to tag the meters, which is the extension of the file name. Anything that does not
+     * look like an extension is reported as 'other' to keep the number of tag values bounded.
+     */
+    public static String artifactType(String target) {
+        int index = target.lastIndexOf('.');
+        if (index == -1 || index == target.length() - 1 || target.length() - index - 1 > MAX_TYPE_LENGTH) {
+            return "other";
+        }
+        for (int i = index + 1; i < target.length(); ++i) {
+            if (!Character.isLetterOrDigit(target.charAt(i))) {
+                return "other";
+            }
+        }
+        return target.substring(index + 1);
+    }
+}
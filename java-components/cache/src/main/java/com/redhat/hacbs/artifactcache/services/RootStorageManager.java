@@ -1,23 +1,31 @@
 package com.redhat.hacbs.artifactcache.services;
 
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
 import java.util.stream.Stream;
 
@@ -46,12 +54,24 @@ import io.quarkus.runtime.ExecutorRecorder;
 @Singleton
 public class RootStorageManager implements StorageManager {
 
+    /**
+     * Marker files used to identify cache directories before the access journal was introduced. They are still
+     * written for directories that are created before the initial load completes, as these may not make it into the
+     * journal.
+     */
     private static final String MARKER = "cache.directory.marker";
     public static final int DELETE_TIMEOUT = 10000;
+    static final int JOURNAL_FLUSH_INTERVAL = 5000;
+    /**
+     * The minimum time between checks triggered by writes when the last check could not get the free space back above the
+     * high water mark, otherwise every write would trigger a check. The timer covers the steady state.
+     */
+    static final int MIN_TRIGGERED_CHECK_INTERVAL = 5000;
 
     final Path path;
 
     private static final long DELETE_IN_PROGRESS = -1;
+    static final int COMPACT_THRESHOLD = 1024;
     private final int deleteBatchSize;
 
     /**
@@ -59,13 +79,52 @@ public class RootStorageManager implements StorageManager {
      */
     final ConcurrentMap<String, AtomicLong> inUseMap = new ConcurrentHashMap<>();
 
-    private static final Function<String, AtomicLong> FACTORY = (s) -> new AtomicLong(System.currentTimeMillis());
+    /**
+     * Directory accesses in the order they happened, the head is the least recently used entry. Every access appends a
+     * new record rather than moving the existing one, so records that have been superseded by a later access are skipped
+     * when evicting, and periodically compacted away.
+     */
+    final ConcurrentLinkedDeque<AccessRecord> accessQueue = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger accessQueueSize = new AtomicInteger();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * Existing entries that have been found by the initial load, but not yet added to the access queue, oldest first.
+     * These are evicted before anything in the queue, so space can be freed while a large cache is still being loaded.
+     */
+    final PriorityBlockingQueue<AccessRecord> loadingQueue = new PriorityBlockingQueue<>(11,
+            Comparator.comparingLong(AccessRecord::time));
+
+    final AccessJournal journal;
+    /**
+     * Until the initial load completes the in memory state is incomplete, so the journal is not written.
+     */
+    private volatile boolean loaded;
     private final FileStore fileStore;
     final double highWater;
     final double lowWater;
     private volatile long highWaterFreeSpace;
     private volatile long lowWaterFreeSpace;
 
+    /**
+     * The usable space at the last check, and the bytes written since then. Together they give the projected free space,
+     * so a check can be triggered as soon as the high water mark is crossed.
+     */
+    private volatile long lastUsableSpace;
+    private final AtomicLong bytesSinceCheck = new AtomicLong();
+    private final AtomicBoolean checkScheduled = new AtomicBoolean();
+    private volatile long lastTriggeredCheck;
+
+    /**
+     * Checks triggered by writes can delete a lot of files, so they get their own thread rather than tying up a pool
+     * thread.
+     */
+    private final ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "cache-cleanup");
+        t.setDaemon(true);
+        return t;
+    });
+
     private Timer timer;
 
     private final Counter cacheFreeCount;
@@ -92,10 +151,12 @@ public class RootStorageManager implements StorageManager {
         this.lowWater = lowWater;
         this.path = path;
         Files.createDirectories(path);
+        this.journal = new AccessJournal(path.resolve(AccessJournal.FILE_NAME));
         this.fileStore = Files.getFileStore(path);
         highWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - highWater));
         lowWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - lowWater));
         this.deleteBatchSize = deleteBatchSize;
+        this.lastUsableSpace = fileStore.getUsableSpace();
         Log.infof("Cache requires at least %s space free, and will delete to the low water mark of %s. Total disk size is %s.",
                 formatSize(highWaterFreeSpace),
                 formatSize(lowWaterFreeSpace), formatSize(fileStore.getTotalSpace()));
@@ -123,9 +184,11 @@ public class RootStorageManager implements StorageManager {
         this.fileStore = fileStore;
         this.path = path;
         Files.createDirectories(path);
+        this.journal = new AccessJournal(path.resolve(AccessJournal.FILE_NAME));
         highWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - highWater));
         lowWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - lowWater));
         this.deleteBatchSize = deleteBatchSize;
+        this.lastUsableSpace = fileStore.getUsableSpace();
         Log.infof("Cache requires at least %s space free, and will delete to the low water mark of %s. Total disk size is %s.",
                 formatSize(highWaterFreeSpace),
                 formatSize(lowWaterFreeSpace), formatSize(fileStore.getTotalSpace()));
@@ -142,41 +205,89 @@ public class RootStorageManager implements StorageManager {
                 checkSpace();
             }
         }, 60000, 60000);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flushJournal();
+            }
+        }, JOURNAL_FLUSH_INTERVAL, JOURNAL_FLUSH_INTERVAL);
         ExecutorRecorder.getCurrent().execute(this::initialLoad);
     }
 
     @PreDestroy
     void destroy() {
         timer.cancel();
+        cleanupExecutor.shutdown();
+        if (!loaded) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to write access journal");
+        }
+    }
+
+    /**
+     * Writes the accesses since the last flush to the journal, and compacts it if it has grown too large.
+     */
+    void flushJournal() {
+        if (!loaded) {
+            return;
+        }
+        try {
+            if (journal.needsCompaction(inUseMap.size())) {
+                journal.writeSnapshot(AccessJournal.times(inUseMap), journal.getOverhead());
+            }
+            journal.flush();
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to write access journal");
+        }
     }
 
     void initialLoad() {
         //there map be initial data in the cache dir, we load it into the in-memory map to allow it to be deleted
         //if the cache needs to be cleared
         AtomicInteger count = new AtomicInteger();
-        AtomicLong ourSize = new AtomicLong();
         try {
-
-            Files.walkFileTree(path, new SimpleFileVisitor<>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    Path marker = dir.resolve(MARKER);
-                    if (Files.exists(marker)) {
-                        count.incrementAndGet();
-                        inUseMap.putIfAbsent(path.relativize(dir).toString(),
-                                new AtomicLong(Files.getLastModifiedTime(dir).toMillis()));
+            boolean interrupted = journal.startLoad();
+            long overhead;
+            if (journal.exists()) {
+                for (var e : journal.load().entrySet()) {
+                    //directories that were removed may still be in the journal
+                    if (Files.isDirectory(path.resolve(e.getKey()))) {
+                        AtomicLong lock = new AtomicLong(e.getValue());
+                        if (inUseMap.putIfAbsent(e.getKey(), lock) == null) {
+                            loadingQueue.add(new AccessRecord(e.getKey(), lock, e.getValue()));
+                            count.incrementAndGet();
+                        }
                     }
-                    return FileVisitResult.CONTINUE;
                 }
-
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    ourSize.addAndGet(Files.size(file));
-                    return FileVisitResult.CONTINUE;
+                overhead = journal.getOverhead();
+                if (interrupted) {
+                    //directories created while the last load was running only have marker files
+                    Log.infof("Previous load of existing entries did not complete, scanning for unknown entries");
+                    loadFromMarkers(count);
                 }
-            });
-            long otherSpace = fileStore.getTotalSpace() - ourSize.get();
-            long overhead = otherSpace - fileStore.getUsableSpace();
+            } else {
+                overhead = loadFromMarkers(count);
+            }
+            synchronized (this) {
+                //these are older than anything accessed since startup, so they go at the head of the queue
+                List<AccessRecord> loaded = new ArrayList<>();
+                loadingQueue.drainTo(loaded);
+                loaded.sort(Comparator.comparingLong(AccessRecord::time));
+                for (var i = loaded.size() - 1; i >= 0; --i) {
+                    accessQueue.addFirst(loaded.get(i));
+                }
+                accessQueueSize.addAndGet(loaded.size());
+            }
+            //rewrite the journal so any partially written record is removed before we append to it
+            journal.writeSnapshot(AccessJournal.times(inUseMap), overhead);
+            this.loaded = true;
+            //anything created since the snapshot was taken
+            journal.flush();
+            journal.loadCompleted();
             if (overhead > fileStore.getTotalSpace() * 0.05d) { //if the overhead is more than 5%
                 Log.infof("Detected existing disk usage of %s, recalculating ", formatSize(overhead));
                 highWaterFreeSpace = (long) ((fileStore.getTotalSpace() - overhead) * (1 - highWater));
@@ -187,13 +298,64 @@ public class RootStorageManager implements StorageManager {
                         formatSize(lowWaterFreeSpace), formatSize(fileStore.getTotalSpace()));
             }
         } catch (IOException e) {
-            Log.error("Failed to scan existing files", e);
+            Log.error("Failed to load existing entries", e);
         } finally {
-            Log.infof("Initial load of existing entries completed, found %s", count.get());
+            Log.infof("Initial load of existing entries completed, found %s", count);
         }
 
     }
 
+    /**
+     * Walks the cache looking for marker files, this is only done for caches that were created before the access
+     * journal existed.
+     *
+     * @return The non-cache disk usage
+     */
+    long loadFromMarkers(AtomicInteger count) throws IOException {
+        AtomicLong ourSize = new AtomicLong();
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path marker = dir.resolve(MARKER);
+                if (Files.exists(marker)) {
+                    String relative = path.relativize(dir).toString();
+                    long time = attrs.lastModifiedTime().toMillis();
+                    AtomicLong lock = new AtomicLong(time);
+                    if (inUseMap.putIfAbsent(relative, lock) == null) {
+                        loadingQueue.add(new AccessRecord(relative, lock, time));
+                        count.incrementAndGet();
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                ourSize.addAndGet(attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof NoSuchFileException) {
+                    //evicted while the load was running
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null && !(exc instanceof NoSuchFileException)) {
+                    throw exc;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        long otherSpace = fileStore.getTotalSpace() - ourSize.get();
+        return otherSpace - fileStore.getUsableSpace();
+    }
+
     /**
      * Get access to a directory to store artifacts. This directory is considered a discrete unit, and if disk usage is too
      * high then this whole directory may be deleted at any point.
@@ -208,12 +370,23 @@ public class RootStorageManager implements StorageManager {
         //deletion locks, if this is being deleted it is set to -1
         //otherwise we just use CAS to update it
         //deletion will notifyAll on the AtomicLong before it is removed
+        //if the directory is in the map it exists, so we only need to touch the file system the first time it is used
+        Path dir = path.resolve(relative);
         long timeOut = System.currentTimeMillis() + DELETE_TIMEOUT;
         for (;;) {
             if (System.currentTimeMillis() > timeOut) {
                 throw new IOException("Timed out waiting for entry deletion: " + relative);
             }
-            AtomicLong current = inUseMap.computeIfAbsent(relative, FACTORY);
+            AtomicLong current = inUseMap.get(relative);
+            if (current == null) {
+                Files.createDirectories(dir);
+                AtomicLong created = new AtomicLong(System.currentTimeMillis());
+                current = inUseMap.putIfAbsent(relative, created);
+                if (current == null) {
+                    current = created;
+                    directoryCreated(relative, dir, created.get());
+                }
+            }
             long val = current.get();
             if (val == -1) {
                 try {
@@ -222,24 +395,62 @@ public class RootStorageManager implements StorageManager {
                     throw new RuntimeException(e);
                 }
             } else {
-                if (current.compareAndSet(val, System.currentTimeMillis())) {
+                long now = System.currentTimeMillis();
+                if (current.compareAndSet(val, now)) {
+                    recordAccess(new AccessRecord(relative, current, now));
+                    journal.recordAccess(relative, now);
                     break;
                 }
             }
         }
+        return dir;
 
-        Path dir = path.resolve(relative);
-        if (!Files.exists(dir)) {
-            Files.createDirectories(dir);
-        } else if (!Files.isDirectory(dir)) {
-            throw new RuntimeException("Not a directory");
+    }
+
+    /**
+     * New directories are written to the journal straight away, if they were only written on the next flush a crash
+     * would leave a directory that is never evicted. Before the initial load completes the journal is not written, so a
+     * marker file is used instead.
+     */
+    private void directoryCreated(String relative, Path dir, long time) throws IOException {
+        if (!loaded) {
+            try {
+                Files.createFile(dir.resolve(MARKER));
+            } catch (FileAlreadyExistsException ignore) {
+            }
+            //if the load completes in the meantime this is written by the flush at the end of the load
+            journal.recordAccess(relative, time);
+            if (!loaded) {
+                return;
+            }
         }
-        Path marker = dir.resolve(MARKER);
-        if (!Files.exists(marker)) {
-            Files.writeString(marker, Long.toString(System.currentTimeMillis()));
+        journal.write(relative, time);
+    }
+
+    private void recordAccess(AccessRecord record) {
+        accessQueue.addLast(record);
+        int size = accessQueueSize.incrementAndGet();
+        if (size > COMPACT_THRESHOLD && size > inUseMap.size() * 2 && compacting.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(this::compactAccessQueue);
         }
-        return dir;
+    }
 
+    /**
+     * Removes records that have been superseded by a later access, this keeps the queue proportional to the number of
+     * directories rather than the number of accesses.
+     */
+    void compactAccessQueue() {
+        try {
+            var it = accessQueue.iterator();
+            while (it.hasNext()) {
+                if (!isCurrent(it.next())) {
+                    it.remove();
+                    accessQueueSize.decrementAndGet();
+                }
+            }
+        } finally {
+            compacting.set(false);
+        }
     }
 
     private void checkRelative(String relative) {
@@ -290,6 +501,7 @@ public class RootStorageManager implements StorageManager {
             Log.errorf("Delete called on non-existent path %s", relative);
         }
         var existing = inUseMap.remove(relative);
+        journal.recordDelete(relative);
         if (existing != null) {
             existing.set(System.currentTimeMillis());
             synchronized (existing) {
@@ -319,7 +531,7 @@ public class RootStorageManager implements StorageManager {
 
         Log.infof("Clearing path %s", path);
         try (var s = Files.list(this.path.resolve(path))) {
-            s.forEach(RootStorageManager::deleteRecursive);
+            s.filter(p -> !journal.isJournalFile(p)).forEach(RootStorageManager::deleteRecursive);
         } catch (IOException e) {
             Log.errorf("Failed to clear path %s", e);
         } finally {
@@ -327,6 +539,7 @@ public class RootStorageManager implements StorageManager {
             HashMap<String, AtomicLong> vals = new HashMap<>(inUseMap);
             inUseMap.clear();
             for (var i : vals.entrySet()) {
+                journal.recordDelete(i.getKey());
                 i.getValue().set(1);
                 synchronized (i.getValue()) {
                     i.getValue().notifyAll();
@@ -335,10 +548,54 @@ public class RootStorageManager implements StorageManager {
         }
     }
 
-    void checkSpace() {
+    @Override
+    public void bytesWritten(long bytes) {
+        long projected = lastUsableSpace - bytesSinceCheck.addAndGet(bytes);
+        if (projected < highWaterFreeSpace) {
+            triggerCheck();
+        }
+    }
+
+    /**
+     * Schedules a check on the cleanup thread, unless one is already scheduled.
+     */
+    private void triggerCheck() {
+        long now = System.currentTimeMillis();
+        if (lastUsableSpace < highWaterFreeSpace && now - lastTriggeredCheck < MIN_TRIGGERED_CHECK_INTERVAL) {
+            //the last check could not free enough space, so there is no point checking on every write
+            return;
+        }
+        if (!checkScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        lastTriggeredCheck = now;
+        Log.debugf("Projected free space is below %s, checking cache space usage", formatSize(highWaterFreeSpace));
+        try {
+            cleanupExecutor.execute(() -> {
+                try {
+                    checkSpace();
+                } finally {
+                    checkScheduled.set(false);
+                }
+                //writes that happened while the check was running may have used up the space it freed
+                if (lastUsableSpace - bytesSinceCheck.get() < highWaterFreeSpace) {
+                    triggerCheck();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //shutting down
+            checkScheduled.set(false);
+        }
+    }
+
+    synchronized void checkSpace() {
         try {
-            if (fileStore.getUsableSpace() < highWaterFreeSpace) {
+            bytesSinceCheck.set(0);
+            long usable = fileStore.getUsableSpace();
+            lastUsableSpace = usable;
+            if (usable < highWaterFreeSpace) {
                 freeSpace();
+                lastUsableSpace = fileStore.getUsableSpace();
             }
         } catch (IOException e) {
             Log.errorf(e, "Failed to check cache space usage");
@@ -350,40 +607,46 @@ public class RootStorageManager implements StorageManager {
                 formatSize(fileStore.getUsableSpace()), formatSize(fileStore.getTotalSpace()), formatSize(lowWaterFreeSpace));
         cacheFreeCount.increment();
         try {
-            TreeMap<Long, List<String>> entries = new TreeMap<>();
-            for (var e : inUseMap.entrySet()) {
-                entries.computeIfAbsent(e.getValue().get(), (s) -> new ArrayList<>()).add(e.getKey());
-            }
             int batchCount = 0;
-            var it = entries.entrySet().iterator();
+            boolean more = true;
             //free till we hit low water
-            while (it.hasNext() && fileStore.getUsableSpace() < lowWaterFreeSpace) {
+            while (more && fileStore.getUsableSpace() < lowWaterFreeSpace) {
                 Log.infof("Deleting batch %s of %s entries", batchCount++, deleteBatchSize);
                 int count = 0;
-                //delete in chunks of batch size
-                while (count++ < deleteBatchSize && it.hasNext()) {
-                    var toDel = it.next();
-                    long expect = toDel.getKey();
-                    for (var file : toDel.getValue()) {
-                        AtomicLong lock = inUseMap.get(file);
-                        if (lock == null) {
-                            continue;
+                //delete in chunks of batch size, the queue is already in least recently used order
+                while (count < deleteBatchSize) {
+                    //entries found by the initial load are older than anything accessed since startup
+                    AccessRecord toDel = loadingQueue.poll();
+                    if (toDel == null) {
+                        toDel = accessQueue.pollFirst();
+                        if (toDel == null) {
+                            more = false;
+                            break;
                         }
-                        if (lock.compareAndSet(expect, DELETE_IN_PROGRESS)) {
-                            inUseMap.remove(file);
-                            try {
-                                safeDeleteRecursive(path.resolve(file));
-                            } catch (Exception e) {
-                                Log.errorf(e, "Failed to clear %s", file);
-                            } finally {
-                                synchronized (lock) {
-                                    lock.notifyAll();
-                                }
+                        accessQueueSize.decrementAndGet();
+                    }
+                    if (!isCurrent(toDel)) {
+                        //there is a more recent access later in the queue
+                        continue;
+                    }
+                    count++;
+                    String file = toDel.relative();
+                    AtomicLong lock = toDel.lock();
+                    if (lock.compareAndSet(toDel.time(), DELETE_IN_PROGRESS)) {
+                        inUseMap.remove(file, lock);
+                        journal.recordDelete(file);
+                        try {
+                            safeDeleteRecursive(path.resolve(file));
+                        } catch (Exception e) {
+                            Log.errorf(e, "Failed to clear %s", file);
+                        } finally {
+                            synchronized (lock) {
+                                lock.notifyAll();
                             }
-
-                        } else {
-                            Log.infof("Unable to delete %s as it is in use", file);
                         }
+
+                    } else {
+                        Log.infof("Unable to delete %s as it is in use", file);
                     }
                 }
             }
@@ -397,14 +660,14 @@ public class RootStorageManager implements StorageManager {
      *
      * @param file
      */
-    public static void safeDeleteRecursive(final Path file) {
+    void safeDeleteRecursive(final Path file) {
         try {
             boolean canDelete = true;
             if (Files.isDirectory(file)) {
                 try (Stream<Path> files = Files.list(file)) {
                     for (var f : files.toList()) {
                         if (Files.isDirectory(f)) {
-                            if (Files.exists(f.resolve(MARKER))) {
+                            if (inUseMap.containsKey(path.relativize(f).toString()) || Files.exists(f.resolve(MARKER))) {
                                 canDelete = false;
                                 continue;
                             }
@@ -470,6 +733,11 @@ public class RootStorageManager implements StorageManager {
 
         }
 
+        @Override
+        public void bytesWritten(long bytes) {
+            RootStorageManager.this.bytesWritten(bytes);
+        }
+
         @Override
         public String path() {
             return path.resolve(relativePath).toString();
@@ -488,6 +756,17 @@ public class RootStorageManager implements StorageManager {
         }
     }
 
+    /**
+     * A single access of a directory. It is current if there has been no later access and the directory has not been
+     * removed from the cache.
+     */
+    record AccessRecord(String relative, AtomicLong lock, long time) {
+    }
+
+    private boolean isCurrent(AccessRecord record) {
+        return record.lock().get() == record.time() && inUseMap.get(record.relative()) == record.lock();
+    }
+
     /**
      * Turns bytes into a human readable format
      */
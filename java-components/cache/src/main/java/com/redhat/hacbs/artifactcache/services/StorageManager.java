@@ -35,6 +35,14 @@ public interface StorageManager {
 
     void delete(String relative);
 
+    /**
+     * Reports that data has been written into the cache. This allows disk usage to be checked as soon as a burst of
+     * writes could have pushed it over the limit, rather than waiting for the next periodic check.
+     *
+     * @param bytes The number of bytes written
+     */
+    void bytesWritten(long bytes);
+
     String path();
 
     void clear();
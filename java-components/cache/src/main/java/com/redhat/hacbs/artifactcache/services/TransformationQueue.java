@@ -0,0 +1,136 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+
+/**
+ * A bounded queue of background transformations.
+ * <p>
+ * Queued tasks are run most recently requested first, as a GAV that has just been requested is the most likely to be
+ * requested again soon. A task can be requested again while it is queued, in which case it is moved to the front of the
+ * queue. There is only ever one entry per task, so the queue never holds more than the maximum number of tasks, and new
+ * tasks are rejected once it is full.
+ */
+class TransformationQueue {
+
+    public static final String QUEUE_DEPTH = "cache_pretransform_queue_depth";
+
+    private final int maxQueued;
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>();
+    private long sequence;
+
+    /**
+     * The queue entry of each task that has been submitted but not yet started, guarded by this
+     */
+    private final Map<Task, Entry> queued = new HashMap<>();
+
+    TransformationQueue(int threads, int maxQueued, MeterRegistry registry) {
+        this.maxQueued = maxQueued;
+        for (var i = 1; i <= threads; ++i) {
+            Thread thread = new Thread(this::runTasks, "cache-pretransform-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Gauge.builder(QUEUE_DEPTH, this, TransformationQueue::depth).register(registry);
+    }
+
+    /**
+     * Queues a task to be run in the background.
+     *
+     * @return false if the queue is full, in which case the task will not be run
+     */
+    synchronized boolean submit(Task task) {
+        if (queued.containsKey(task)) {
+            requested(task);
+            return true;
+        }
+        if (queued.size() >= maxQueued) {
+            return false;
+        }
+        Entry entry = new Entry(task, ++sequence);
+        queued.put(task, entry);
+        queue.add(entry);
+        return true;
+    }
+
+    /**
+     * Moves a queued task to the front of the queue
+     */
+    synchronized void requested(Task task) {
+        Entry existing = queued.get(task);
+        if (existing != null && queue.remove(existing)) {
+            Entry entry = new Entry(task, ++sequence);
+            queued.put(task, entry);
+            queue.add(entry);
+        }
+    }
+
+    /**
+     * Claims a queued task so it can be run by a request that needs it before the queue gets to it.
+     *
+     * @return true if the task was still queued, in which case the queue will no longer run it
+     */
+    synchronized boolean claim(Task task) {
+        Entry entry = queued.remove(task);
+        if (entry == null) {
+            return false;
+        }
+        queue.remove(entry);
+        return true;
+    }
+
+    synchronized int depth() {
+        return queued.size();
+    }
+
+    /**
+     * Takes the entry from the queued tasks, unless it has been claimed since it was taken from the queue
+     */
+    private synchronized boolean start(Entry entry) {
+        return queued.remove(entry.task, entry);
+    }
+
+    private void runTasks() {
+        for (;;) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (start(entry)) {
+                try {
+                    entry.task.runInBackground();
+                } catch (Throwable t) {
+                    Log.errorf(t, "Background transformation failed");
+                }
+            }
+        }
+    }
+
+    interface Task {
+
+        void runInBackground();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Task task;
+        final long sequence;
+
+        Entry(Task task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            //most recent first
+            return Long.compare(o.sequence, sequence);
+        }
+    }
+}
@@ -3,25 +3,42 @@ package com.redhat.hacbs.artifactcache.services.client.maven;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.LongConsumer;
 
 public class CloseDelegateInputStream extends InputStream {
 
     final InputStream delegate;
     final Closeable closeable;
+    final LongConsumer bytesReadListener;
+    long bytesRead;
+    boolean closed;
 
     public CloseDelegateInputStream(InputStream delegate, Closeable closeable) {
+        this(delegate, closeable, null);
+    }
+
+    /**
+     * @param bytesReadListener Notified with the number of bytes that have been read when the stream is closed, may be
+     *        null
+     */
+    public CloseDelegateInputStream(InputStream delegate, Closeable closeable, LongConsumer bytesReadListener) {
         this.delegate = delegate;
         this.closeable = closeable;
+        this.bytesReadListener = bytesReadListener;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        return delegate.read(b);
+        return read(b, 0, b.length);
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        return delegate.read(b, off, len);
+        int r = delegate.read(b, off, len);
+        if (r > 0) {
+            bytesRead += r;
+        }
+        return r;
     }
 
     @Override
@@ -29,12 +46,23 @@ public class CloseDelegateInputStream extends InputStream {
         try {
             delegate.close();
         } finally {
-            closeable.close();
+            try {
+                closeable.close();
+            } finally {
+                if (!closed && bytesReadListener != null) {
+                    bytesReadListener.accept(bytesRead);
+                }
+                closed = true;
+            }
         }
     }
 
     @Override
     public int read() throws IOException {
-        return delegate.read();
+        int r = delegate.read();
+        if (r != -1) {
+            bytesRead++;
+        }
+        return r;
     }
 }
@@ -7,6 +7,12 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
@@ -16,12 +22,15 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HttpContext;
+import org.eclipse.microprofile.config.Config;
 import org.eclipse.microprofile.config.ConfigProvider;
 
 import com.redhat.hacbs.artifactcache.services.ArtifactResult;
 import com.redhat.hacbs.artifactcache.services.RepositoryClient;
+import com.redhat.hacbs.artifactcache.services.RepositoryMetrics;
 import com.redhat.hacbs.artifactcache.util.RequestCleanup;
 
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.arc.Arc;
 import io.quarkus.logging.Log;
 import io.quarkus.vertx.http.runtime.CurrentVertxRequest;
@@ -29,20 +38,62 @@ import io.quarkus.vertx.http.runtime.CurrentVertxRequest;
 public class MavenClient implements RepositoryClient {
 
     public static final String SHA_1 = ".sha1";
+    public static final String RETRY_BACKOFF = ".retry-backoff-ms";
+    public static final String RETRY_MAX_BACKOFF = ".retry-max-backoff-ms";
+    static final long DEFAULT_BACKOFF = 10000;
+    static final long DEFAULT_MAX_BACKOFF = 60000;
+    private static final String STORE = "store.";
+    /**
+     * Checksums are fetched alongside the artifact downloads, if there are more than this in flight they queue.
+     */
+    static final int CHECKSUM_THREADS = 20;
+    static final ThreadPoolExecutor CHECKSUM_EXECUTOR = new ThreadPoolExecutor(CHECKSUM_THREADS, CHECKSUM_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "maven-checksum-download");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        CHECKSUM_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private final String name;
     private final URI uri;
 
     private final String stringUri;
     final CloseableHttpClient remoteClient;
+    final CloseableHttpClient checksumClient;
     final CurrentVertxRequest currentVertxRequest;
 
     final RequestCleanup requestCleanup;
 
     final int networkRetries;
+    final long initialBackoff;
+    final long maxBackoff;
+
+    final RepositoryMetrics metrics;
 
     public MavenClient(String name, URI uri, int networkRetries, String username, String password) {
         this.networkRetries = networkRetries;
-        int threads = ConfigProvider.getConfig().getOptionalValue("quarkus.thread.pool.max.threads", Integer.class).orElse(10);
+        Config config = ConfigProvider.getConfig();
+        this.initialBackoff = config.getOptionalValue(STORE + name + RETRY_BACKOFF, Long.class).orElse(DEFAULT_BACKOFF);
+        this.maxBackoff = config.getOptionalValue(STORE + name + RETRY_MAX_BACKOFF, Long.class).orElse(DEFAULT_MAX_BACKOFF);
+        int threads = config.getOptionalValue("quarkus.thread.pool.max.threads", Integer.class).orElse(10);
+        remoteClient = createClient(threads, username, password);
+        //checksums are fetched at the same time as the artifact, so they need their own connection pool
+        //otherwise if all the connections are being used to download artifacts then there are none
+        //available to download the shas and the requests would deadlock
+        checksumClient = createClient(threads, username, password);
+        this.name = name;
+        this.uri = uri;
+        this.stringUri = uri.toASCIIString();
+        this.metrics = new RepositoryMetrics(name);
+        currentVertxRequest = Arc.container().instance(CurrentVertxRequest.class).get();
+        requestCleanup = RequestCleanup.instance();
+    }
+
+    private static CloseableHttpClient createClient(int threads, String username, String password) {
         HttpClientBuilder httpClientBuilder = HttpClientBuilder.create().disableAutomaticRetries().setMaxConnPerRoute(threads)
                 .setMaxConnTotal(threads);
         if (username != null && password != null) {
@@ -55,13 +106,7 @@ public class MavenClient implements RepositoryClient {
                 }
             });
         }
-        remoteClient = httpClientBuilder
-                .build();
-        this.name = name;
-        this.uri = uri;
-        this.stringUri = uri.toASCIIString();
-        currentVertxRequest = Arc.container().instance(CurrentVertxRequest.class).get();
-        requestCleanup = RequestCleanup.instance();
+        return httpClientBuilder.build();
     }
 
     public static MavenClient of(String name, URI uri) {
@@ -85,56 +130,53 @@ public class MavenClient implements RepositoryClient {
 
     private Optional<ArtifactResult> downloadMavenFile(String group, String artifact, String version, String target,
             String targetUri) {
-        long backoff = 10000;
+        //the sha is fetched in parallel with the artifact, it is only waited on once the artifact has been read
+        Sha1Download sha1 = target.endsWith(SHA_1) ? null : new Sha1Download(group, artifact, version, target, targetUri);
+        Optional<ArtifactResult> result = Optional.empty();
+        try {
+            result = downloadMavenFile(group, artifact, version, target, targetUri, sha1);
+            return result;
+        } finally {
+            if (sha1 != null && result.isEmpty()) {
+                sha1.cancel();
+            }
+        }
+    }
+
+    private Optional<ArtifactResult> downloadMavenFile(String group, String artifact, String version, String target,
+            String targetUri, Sha1Download sha1) {
         IOException networkException = null;
         int retryCount = 0;
-        String sha1 = null;
+        String type = RepositoryMetrics.artifactType(target);
         while (retryCount <= networkRetries) {
 
             CloseableHttpResponse response = null;
+            //the latency is the time until the response headers have been received, the body is streamed to the caller
+            Timer.Sample sample = Timer.start();
             try {
-                //this must be first, having it lower down can create a deadlock in some situations
-                //if all the connections are being used to download the main artifacts then there are
-                //none in the pool to download the shas
                 try {
-                    if (!target.endsWith(SHA_1) && sha1 == null) {
-                        try (var hash = remoteClient.execute(new HttpGet(
-                                targetUri + SHA_1))) {
-                            if (hash.getStatusLine().getStatusCode() == 404) {
-                                hash.getEntity().getContent().readAllBytes(); //read the 404 page
-                                Log.debugf("Could not find sha1 hash for artifact %s/%s/%s/%s from repo %s at %s", group,
-                                        artifact,
-                                        version,
-                                        target, name, uri);
-                            } else {
-                                sha1 = new String(hash.getEntity().getContent().readAllBytes(), StandardCharsets.UTF_8).trim();
-                                //older maven version would deploy sha files with extra stuff after the sha
-                                if (sha1.contains(" ")) {
-                                    sha1 = sha1.split(" ")[0];
-                                }
-                            }
-                        }
-                    }
                     HttpGet httpGet = new HttpGet(targetUri);
                     response = remoteClient.execute(httpGet);
                     requestCleanup.addResource(response);
                 } catch (IOException e) {
+                    sample.stop(metrics.timer(RepositoryMetrics.UPSTREAM_REQUESTS, type, "error"));
                     //if we have a network issues we might want to retry
                     networkException = e;
                     retryCount++;
                     if (retryCount <= networkRetries) {
                         Log.infof("Retrying request to %s due to network failure %s", targetUri, e.getMessage());
-                        Thread.sleep(backoff);
-                        backoff += backoff;
+                        Thread.sleep(backoff(initialBackoff, maxBackoff, retryCount));
                     }
                     continue;
                 }
                 if (response.getStatusLine().getStatusCode() == 404) {
+                    sample.stop(metrics.timer(RepositoryMetrics.UPSTREAM_REQUESTS, type, "not_found"));
                     Log.infof("404 downloading artifact %s", targetUri);
                     closeResponse(response);
                     return Optional.empty();
                 }
                 if (response.getStatusLine().getStatusCode() != 200) {
+                    sample.stop(metrics.timer(RepositoryMetrics.UPSTREAM_REQUESTS, type, "error"));
                     closeResponse(response);
                     Log.errorf(
                             "Unexpected status code: " + response.getStatusLine().getStatusCode() + " downloading %s from %s",
@@ -145,11 +187,14 @@ public class MavenClient implements RepositoryClient {
                 for (var i : response.getAllHeaders()) {
                     headers.put(i.getName(), i.getValue());
                 }
+                sample.stop(metrics.timer(RepositoryMetrics.UPSTREAM_REQUESTS, type, "found"));
                 Log.debugf("Found artifact %s/%s/%s/%s from repo %s at %s", group, artifact, version, target, name, uri);
+                var bytes = metrics.summary(RepositoryMetrics.UPSTREAM_BYTES, type);
                 return Optional
-                        .of(new ArtifactResult(null, new CloseDelegateInputStream(response.getEntity().getContent(), response),
+                        .of(new ArtifactResult(null,
+                                new CloseDelegateInputStream(response.getEntity().getContent(), response, bytes::record),
                                 response.getEntity().getContentLength(),
-                                Optional.ofNullable(sha1), headers));
+                                sha1 == null ? Optional::empty : sha1::await, headers));
             } catch (Exception e) {
                 try {
                     if (response != null) {
@@ -164,6 +209,119 @@ public class MavenClient implements RepositoryClient {
         throw new RuntimeException(networkException);
     }
 
+    private Optional<String> downloadSha1(String group, String artifact, String version, String target,
+            String targetUri, Sha1Download download) {
+        IOException networkException = null;
+        int retryCount = 0;
+        while (retryCount <= networkRetries) {
+            HttpGet request = download.newRequest(targetUri + SHA_1);
+            if (request == null) {
+                return Optional.empty();
+            }
+            try (var hash = checksumClient.execute(request)) {
+                if (hash.getStatusLine().getStatusCode() == 404) {
+                    hash.getEntity().getContent().readAllBytes(); //read the 404 page
+                    Log.debugf("Could not find sha1 hash for artifact %s/%s/%s/%s from repo %s at %s", group,
+                            artifact,
+                            version,
+                            target, name, uri);
+                    return Optional.empty();
+                }
+                String sha1 = new String(hash.getEntity().getContent().readAllBytes(), StandardCharsets.UTF_8).trim();
+                //older maven version would deploy sha files with extra stuff after the sha
+                if (sha1.contains(" ")) {
+                    sha1 = sha1.split(" ")[0];
+                }
+                return Optional.of(sha1);
+            } catch (IOException e) {
+                if (download.isCancelled()) {
+                    return Optional.empty();
+                }
+                //if we have a network issues we might want to retry
+                networkException = e;
+                retryCount++;
+                if (retryCount <= networkRetries) {
+                    Log.infof("Retrying request to %s due to network failure %s", targetUri + SHA_1, e.getMessage());
+                    try {
+                        Thread.sleep(backoff(initialBackoff, maxBackoff, retryCount));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(ex);
+                    }
+                }
+            }
+        }
+        throw new RuntimeException(networkException);
+    }
+
+    /**
+     * The download of a sha1 that runs while the artifact itself is being requested. If the artifact is not returned
+     * the request is aborted, so it does not hold on to a checksum connection and thread.
+     */
+    private final class Sha1Download {
+        private final CompletableFuture<Optional<String>> result;
+        private HttpGet request;
+        private boolean cancelled;
+
+        Sha1Download(String group, String artifact, String version, String target, String targetUri) {
+            result = CompletableFuture.supplyAsync(() -> downloadSha1(group, artifact, version, target, targetUri, this),
+                    CHECKSUM_EXECUTOR);
+        }
+
+        /**
+         * @return The request for the next attempt, or null if the download has been cancelled
+         */
+        synchronized HttpGet newRequest(String uri) {
+            if (cancelled) {
+                return null;
+            }
+            request = new HttpGet(uri);
+            return request;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        void cancel() {
+            HttpGet current;
+            synchronized (this) {
+                cancelled = true;
+                current = request;
+            }
+            result.cancel(false);
+            if (current != null) {
+                current.abort();
+            }
+        }
+
+        Optional<String> await() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, the delay for a given retry is between half and all of the exponential delay, so
+     * that requests that failed at the same time do not all retry at the same time.
+     *
+     * @param initialBackoff The delay of the first retry
+     * @param maxBackoff The maximum delay
+     * @param retry The retry number, starting from 1
+     * @return The delay in milliseconds
+     */
+    static long backoff(long initialBackoff, long maxBackoff, int retry) {
+        long exponential = Math.min(maxBackoff, initialBackoff << Math.min(retry - 1, 30));
+        if (exponential <= 1) {
+            return Math.max(exponential, 0);
+        }
+        long half = exponential / 2;
+        return half + ThreadLocalRandom.current().nextLong(exponential - half + 1);
+    }
+
     private void closeResponse(CloseableHttpResponse response) throws IOException {
         byte[] buff = new byte[1024];
         while (response.getEntity().getContent().read(buff) > 0) {
@@ -0,0 +1,178 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import com.redhat.hacbs.artifactcache.services.RootStorageManager;
+import com.redhat.hacbs.artifactcache.services.StorageManager;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Content addressed store for OCI layers, shared between all the OCI repositories.
+ * <p>
+ * Each layer is extracted once into a directory keyed by its digest, no matter how many images it is part of. Images
+ * get their own view of the layer made of hard links, so deleting an image, as happens when an artifact is rebuilt, does
+ * not affect other images that share the layer, and evicting the layer does not affect the images that link to it.
+ * <p>
+ * Once a layer has been extracted the list of its files is written to an index file next to it. The index marks the
+ * layer as complete, and means views can be created after a restart without walking the layer directory. If any of the
+ * indexed files turn out to be missing when a view is created the index is removed, and the layer is pulled again.
+ */
+public class OCILayerStore {
+
+    public static final String STORE = ".oci-layers";
+    static final String CONTENT = "content";
+    static final String INDEX = "files.index";
+
+    final StorageManager storageManager;
+
+    /**
+     * Layers that are being pulled, other requests for the same digest wait on these rather than pulling it again
+     */
+    final ConcurrentHashMap<String, CompletableFuture<Layer>> inProgress = new ConcurrentHashMap<>();
+
+    public OCILayerStore(StorageManager storageManager) {
+        this.storageManager = storageManager;
+    }
+
+    /**
+     * Returns the layer with the given digest, pulling it if it is not already present.
+     *
+     * @param digestHash The hash part of the layer digest
+     * @param puller Extracts the layer into the given directory, only invoked if the layer is not in the store
+     */
+    Layer get(String digestHash, Puller puller) throws IOException {
+        Path dir = storageManager.accessDirectory(digestHash.substring(0, 2) + "/" + digestHash);
+        Layer existing = read(dir);
+        if (existing != null) {
+            return existing;
+        }
+        CompletableFuture<Layer> future = new CompletableFuture<>();
+        var inProgressFuture = inProgress.putIfAbsent(digestHash, future);
+        if (inProgressFuture != null) {
+            try {
+                return inProgressFuture.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        try {
+            //it may have been completed while we were checking
+            Layer layer = read(dir);
+            if (layer == null) {
+                layer = extract(dir, puller);
+            }
+            future.complete(layer);
+            return layer;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inProgress.remove(digestHash, future);
+        }
+    }
+
+    /**
+     * Creates a view of the layer with the given digest in the target directory, pulling the layer if it is not already
+     * present, or if some of its files have been removed since it was indexed.
+     *
+     * @param digestHash The hash part of the layer digest
+     * @param puller Extracts the layer into the given directory, only invoked if the layer is not in the store
+     * @param target The directory the view is created in
+     */
+    void link(String digestHash, Puller puller, Path target) throws IOException {
+        try {
+            get(digestHash, puller).link(target);
+        } catch (NoSuchFileException e) {
+            Log.debugf(e, "Layer %s is incomplete, pulling it again", digestHash);
+            invalidate(digestHash);
+            RootStorageManager.deleteRecursive(target);
+            Files.createDirectories(target);
+            get(digestHash, puller).link(target);
+        }
+    }
+
+    /**
+     * Removes the index of a layer, so the next request pulls it again. The content is removed before the layer is
+     * extracted.
+     */
+    private void invalidate(String digestHash) throws IOException {
+        Path dir = storageManager.accessDirectory(digestHash.substring(0, 2) + "/" + digestHash);
+        Files.deleteIfExists(dir.resolve(INDEX));
+    }
+
+    private Layer extract(Path dir, Puller puller) throws IOException {
+        Path content = dir.resolve(CONTENT);
+        if (Files.exists(content)) {
+            //left over from a pull that did not complete
+            RootStorageManager.deleteRecursive(content);
+        }
+        Files.createDirectories(content);
+        try {
+            puller.pull(content);
+        } catch (IOException | RuntimeException e) {
+            if (Files.exists(content)) {
+                RootStorageManager.deleteRecursive(content);
+            }
+            throw e;
+        }
+        List<String> files;
+        try (Stream<Path> stream = Files.walk(content)) {
+            files = stream.filter(Files::isRegularFile)
+                    .map(p -> content.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/"))
+                    .toList();
+        }
+        Path temp = Files.createTempFile(dir, "files", ".part");
+        Files.write(temp, files, StandardCharsets.UTF_8);
+        Files.move(temp, dir.resolve(INDEX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new Layer(content, files);
+    }
+
+    private static Layer read(Path dir) throws IOException {
+        try {
+            return new Layer(dir.resolve(CONTENT), Files.readAllLines(dir.resolve(INDEX), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    record Layer(Path content, List<String> files) {
+
+        /**
+         * Creates a view of the layer in the target directory, made of hard links to the layer files. If the target is on
+         * a different file system the files are copied instead.
+         */
+        void link(Path target) throws IOException {
+            for (String file : files) {
+                Path stored = content.resolve(file);
+                Path linked = target.resolve(file);
+                Files.createDirectories(linked.getParent());
+                try {
+                    Files.createLink(linked, stored);
+                } catch (NoSuchFileException e) {
+                    throw e;
+                } catch (UnsupportedOperationException | IOException e) {
+                    Log.debugf(e, "Unable to link %s to %s, copying instead", stored, linked);
+                    Files.copy(stored, linked, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    interface Puller {
+        void pull(Path target) throws IOException;
+    }
+}
@@ -5,19 +5,27 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.redhat.hacbs.artifactcache.artifactwatch.RebuiltArtifacts;
 import com.redhat.hacbs.artifactcache.services.ArtifactResult;
 import com.redhat.hacbs.artifactcache.services.RepositoryClient;
+import com.redhat.hacbs.artifactcache.services.RepositoryMetrics;
+import com.redhat.hacbs.artifactcache.services.RootStorageManager;
 import com.redhat.hacbs.artifactcache.services.StorageManager;
 import com.redhat.hacbs.common.images.ociclient.LocalImage;
 import com.redhat.hacbs.common.images.ociclient.OCIRegistryClient;
 import com.redhat.hacbs.resources.util.ShaUtil;
 
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.logging.Log;
 
 public class OCIRepositoryClient implements RepositoryClient {
@@ -29,16 +37,30 @@ public class OCIRepositoryClient implements RepositoryClient {
 
     final RebuiltArtifacts rebuiltArtifacts;
 
-    final Map<String, CountDownLatch> locks = new ConcurrentHashMap<>();
+    private final OCILayerStore layerStore;
+
+    /**
+     * Images that are being pulled, keyed by digest. Other requests for the same image wait on these.
+     */
+    final Map<String, CompletableFuture<Path>> inProgress = new ConcurrentHashMap<>();
+
+    /**
+     * Image tags by GAV, rebuilt artifacts tend to be requested over and over again by the builds that depend on them
+     */
+    private final Cache<String, String> tags = Caffeine.newBuilder().maximumSize(MAX_TAGS).build();
+
+    final RepositoryMetrics metrics;
 
     public OCIRepositoryClient(String registry, String owner, String repository, Optional<String> authToken,
             Optional<String> prependHashedGav,
             boolean enableHttpAndInsecureFailover, RebuiltArtifacts rebuiltArtifacts,
-            StorageManager storageManager) {
+            StorageManager storageManager, OCILayerStore layerStore) {
         this.prependHashedGav = prependHashedGav;
+        this.layerStore = layerStore;
         this.registryClient = new OCIRegistryClient(registry, owner, repository, authToken, enableHttpAndInsecureFailover);
         this.rebuiltArtifacts = rebuiltArtifacts;
         this.storageManager = storageManager;
+        this.metrics = new RepositoryMetrics(registryClient.getName());
     }
 
     @Override
@@ -52,36 +74,33 @@ public class OCIRepositoryClient implements RepositoryClient {
         long time = System.currentTimeMillis();
 
         group = group.replace("/", ".");
-        String groupPath = group.replace(DOT, File.separator);
-        String hashedGav = ShaUtil.sha256sum(group, artifact, version);
-        if (prependHashedGav.isPresent()) {
-            hashedGav = prependHashedGav.get() + UNDERSCORE + hashedGav;
-        }
-        if (hashedGav.length() > 128) {
-            hashedGav = hashedGav.substring(0, 128);
-        }
-
         String gav = group + ":" + artifact + ":" + version;
         if (!rebuiltArtifacts.isPossiblyRebuilt(gav)) {
             return Optional.empty();
         }
+        String groupPath = group.replace(DOT, File.separator);
+        String hashedGav = tags.get(gav, this::imageTag);
         Log.debugf("Attempting to retrieve %s for artifact %s", hashedGav, gav);
         return doDownload(group, artifact, version, target, time, groupPath, hashedGav);
     }
 
     private Optional<ArtifactResult> doDownload(String group, String artifact, String version, String target, long time,
             String groupPath, String hashedGav) {
+        String type = RepositoryMetrics.artifactType(target);
+        Timer.Sample sample = Timer.start();
+        String result = "not_found";
         try {
             var image = registryClient.pullImage(hashedGav);
             if (image.isEmpty()) {
                 return Optional.empty();
             }
 
-            Optional<Path> repoRoot = getLocalCachePath(image.get());
+            Optional<Path> repoRoot = getLocalCachePath(image.get(), type);
             if (repoRoot.isPresent()) {
                 Path fileWeAreAfter = repoRoot.get().resolve(groupPath).resolve(artifact).resolve(version).resolve(target);
                 boolean exists = Files.exists(fileWeAreAfter);
                 if (exists) {
+                    result = "found";
                     return Optional.of(
                             new ArtifactResult(null, Files.newInputStream(fileWeAreAfter), Files.size(fileWeAreAfter),
                                     getSha1(fileWeAreAfter),
@@ -91,20 +110,36 @@ public class OCIRepositoryClient implements RepositoryClient {
                 }
             }
         } catch (Exception ioe) {
+            result = "error";
             throw new RuntimeException(ioe);
         } finally {
+            sample.stop(metrics.timer(RepositoryMetrics.UPSTREAM_REQUESTS, type, result));
             Log.debugf("OCI registry request to %s:%s:%s took %sms", group, artifact, version,
                     System.currentTimeMillis() - time);
         }
         return Optional.empty();
     }
 
+    /**
+     * The image tag is the sha256 of the GAV, as tags can't contain all the characters that are valid in a GAV
+     */
+    private String imageTag(String gav) {
+        String hashedGav = ShaUtil.sha256sum(gav);
+        if (prependHashedGav.isPresent()) {
+            hashedGav = prependHashedGav.get() + UNDERSCORE + hashedGav;
+        }
+        if (hashedGav.length() > 128) {
+            hashedGav = hashedGav.substring(0, 128);
+        }
+        return hashedGav;
+    }
+
     @Override
     public Optional<ArtifactResult> getMetadataFile(String group, String target) {
         return Optional.empty();
     }
 
-    private Optional<Path> getLocalCachePath(LocalImage image)
+    private Optional<Path> getLocalCachePath(LocalImage image, String type)
             throws IOException {
         String digestHash = image.getDigestHash();
         Path digestHashPath = storageManager.accessDirectory(digestHash);
@@ -112,41 +147,65 @@ public class OCIRepositoryClient implements RepositoryClient {
 
         if (existInLocalCache(digestHashPath)) {
             return Optional.of(artifactsPath);
-        } else {
-            CountDownLatch latch = new CountDownLatch(1);
-            var existing = locks.putIfAbsent(digestHash, latch);
-            if (existing == null) {
-                try {
-                    return pullFromRemoteAndCache(image, digestHashPath);
-                } finally {
-                    latch.countDown();
-                    locks.remove(digestHash);
-                }
-            } else {
-                try {
-                    existing.await();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-                if (existInLocalCache(digestHashPath)) {
-                    return Optional.of(artifactsPath);
-                }
+        }
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        var existing = inProgress.putIfAbsent(digestHash, future);
+        if (existing != null) {
+            try {
+                return Optional.of(existing.join());
+            } catch (CompletionException e) {
+                //the request that did the pull reports the failure
                 return Optional.empty();
             }
         }
+        try {
+            Path result = existInLocalCache(digestHashPath) ? artifactsPath
+                    : pullFromRemoteAndCache(image, digestHashPath, type);
+            future.complete(result);
+            return Optional.of(result);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inProgress.remove(digestHash, future);
+        }
     }
 
-    private Optional<Path> pullFromRemoteAndCache(LocalImage image,
-            Path digestHashPath)
+    private Path pullFromRemoteAndCache(LocalImage image,
+            Path digestHashPath, String type)
             throws IOException {
         //layer 2 is artifacts, should be a 3 layer image
         //we don't actually check as we might want to allow more,
         //and just require the artifacts to be in the last layer
         //Oras doesn't store with the artifacts directory so create it as well.
-        Path outputPath = Files.createDirectories(Paths.get(digestHashPath.toString(), ARTIFACTS));
-
-        image.pullLayer(image.getLayerCount() - 1, outputPath);
-        return Optional.of(outputPath);
+        int layerIndex = image.getLayerCount() - 1;
+        String layerDigest = image.getManifest().getLayers().get(layerIndex).getDigest().getHash();
+        OCILayerStore.Puller puller = target -> {
+            AtomicLong bytes = new AtomicLong();
+            image.pullLayer(layerIndex, target, s -> {
+            }, b -> {
+                bytes.addAndGet(b);
+                storageManager.bytesWritten(b);
+            });
+            //the whole layer is pulled, so this is attributed to the artifact that caused the pull
+            metrics.summary(RepositoryMetrics.UPSTREAM_BYTES, type).record(bytes.get());
+        };
+        //the view is built in a temp directory and moved into place, so a partial view is never seen as cached
+        Path outputPath = digestHashPath.resolve(ARTIFACTS);
+        Path temp = digestHashPath.resolve(ARTIFACTS + ".part");
+        if (Files.exists(temp)) {
+            RootStorageManager.deleteRecursive(temp);
+        }
+        Files.createDirectories(temp);
+        try {
+            layerStore.link(layerDigest, puller, temp);
+            Files.move(temp, outputPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (Files.exists(temp)) {
+                RootStorageManager.deleteRecursive(temp);
+            }
+        }
+        return outputPath;
     }
 
     private boolean existInLocalCache(Path digestHashPath) {
@@ -163,6 +222,7 @@ public class OCIRepositoryClient implements RepositoryClient {
         return Optional.empty();
     }
 
+    private static final int MAX_TAGS = 10000;
     private static final String UNDERSCORE = "_";
     private static final String ARTIFACTS = "artifacts";
     private static final String DOT = ".";
@@ -0,0 +1,111 @@
+package com.redhat.hacbs.artifactcache.artifactwatch;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.resources.model.v1alpha1.RebuiltArtifact;
+import com.redhat.hacbs.resources.model.v1alpha1.RebuiltArtifactSpec;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.EnableKubernetesMockClient;
+
+@EnableKubernetesMockClient(crud = true)
+public class RebuiltArtifactsTestCase {
+
+    static KubernetesClient client;
+
+    @Test
+    public void testRebuiltArtifactsTracked() throws Exception {
+        RebuiltArtifacts rebuiltArtifacts = new RebuiltArtifacts();
+        rebuiltArtifacts.client = client;
+        List<String> deleted = new ArrayList<>();
+        rebuiltArtifacts.addImageDeletionListener((gav, digest) -> deleted.add(gav));
+        rebuiltArtifacts.start();
+
+        for (var i = 0; i < 20; ++i) {
+            create("rebuilt-" + i, "com.acme:artifact" + i + ":1.0");
+        }
+        waitFor(() -> rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact19:1.0"));
+        for (var i = 0; i < 20; ++i) {
+            Assertions.assertTrue(rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact" + i + ":1.0"));
+        }
+        Assertions.assertFalse(rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact20:1.0"));
+
+        client.resources(RebuiltArtifact.class).withName("rebuilt-0").delete();
+        waitFor(() -> !rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact0:1.0"));
+        Assertions.assertEquals(List.of("com.acme:artifact0:1.0"), deleted);
+        Assertions.assertTrue(rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact1:1.0"));
+    }
+
+    @Test
+    public void testFilterRebuilt() {
+        RebuiltArtifacts rebuiltArtifacts = new RebuiltArtifacts();
+        int count = RebuiltArtifacts.MIN_FILTER_CAPACITY * 4;
+        for (var i = 0; i < count; ++i) {
+            rebuiltArtifacts.add("com.acme:artifact" + i + ":1.0");
+        }
+        //the filter grows with the set
+        Assertions.assertTrue(rebuiltArtifacts.filter.capacity() >= count);
+        for (var i = 0; i < count; ++i) {
+            Assertions.assertTrue(rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact" + i + ":1.0"));
+        }
+        for (var i = 0; i < count; i += 2) {
+            rebuiltArtifacts.remove("com.acme:artifact" + i + ":1.0");
+        }
+        for (var i = 0; i < count; ++i) {
+            Assertions.assertEquals(i % 2 == 1, rebuiltArtifacts.isPossiblyRebuilt("com.acme:artifact" + i + ":1.0"));
+        }
+        //the filter has been rebuilt, so only the entries removed since then still match it
+        Assertions.assertTrue(rebuiltArtifacts.removedSinceRebuild < count / 2);
+        int falsePositives = 0;
+        for (var i = 0; i < count; i += 2) {
+            if (rebuiltArtifacts.filter.mightContain("com.acme:artifact" + i + ":1.0")) {
+                falsePositives++;
+            }
+        }
+        Assertions.assertTrue(falsePositives < rebuiltArtifacts.removedSinceRebuild + count / 50,
+                "False positives " + falsePositives);
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        GavFilter filter = new GavFilter(100000);
+        for (var i = 0; i < 100000; ++i) {
+            filter.add("org.example:lib" + i + ":1." + i);
+        }
+        for (var i = 0; i < 100000; ++i) {
+            Assertions.assertTrue(filter.mightContain("org.example:lib" + i + ":1." + i));
+        }
+        int falsePositives = 0;
+        for (var i = 0; i < 100000; ++i) {
+            if (filter.mightContain("org.example:other" + i + ":1." + i)) {
+                falsePositives++;
+            }
+        }
+        Assertions.assertTrue(falsePositives < 2000, "False positives " + falsePositives);
+    }
+
+    static void create(String name, String gav) {
+        RebuiltArtifact artifact = new RebuiltArtifact();
+        artifact.setMetadata(new ObjectMetaBuilder().withName(name).build());
+        RebuiltArtifactSpec spec = new RebuiltArtifactSpec();
+        spec.setGav(gav);
+        spec.setDigest("sha256:" + name);
+        artifact.setSpec(spec);
+        client.resources(RebuiltArtifact.class).resource(artifact).create();
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + Duration.ofSeconds(10).toMillis();
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < end, "Timed out waiting for informer");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ArtifactMetadataIndexTestCase {
+
+    @Test
+    public void testLoadFromSidecarFiles() throws IOException {
+        Path dir = Files.createTempDirectory("index-test");
+        try {
+            Path artifact = dir.resolve("test-1.0.jar");
+            Files.writeString(artifact, "contents");
+            Files.writeString(dir.resolve("test-1.0.jar" + RepositoryCache.SHA_1), "abc");
+            Files.writeString(dir.resolve("test-1.0.jar" + RepositoryCache.HEADERS), "Last-Modified=yesterday\n");
+
+            ArtifactMetadataIndex index = new ArtifactMetadataIndex(10);
+            var metadata = index.get(artifact);
+            Assertions.assertEquals(Optional.of("abc"), metadata.sha1());
+            Assertions.assertEquals(Map.of("last-modified", "yesterday"), metadata.headers());
+            Assertions.assertEquals(8, metadata.size());
+
+            //once indexed the sidecar files are no longer read
+            Files.delete(dir.resolve("test-1.0.jar" + RepositoryCache.SHA_1));
+            Assertions.assertEquals(Optional.of("abc"), index.get(artifact).sha1());
+
+            index.invalidateDirectory(dir);
+            Assertions.assertEquals(Optional.empty(), index.get(artifact).sha1());
+
+            index.put(artifact, new ArtifactMetadataIndex.ArtifactMetadata(Optional.of("def"), Map.of(), 8));
+            Assertions.assertEquals(Optional.of("def"), index.get(artifact).sha1());
+
+            //evicted and downloaded again, without the index being told
+            Files.delete(artifact);
+            Files.writeString(artifact, "new contents");
+            Files.writeString(dir.resolve("test-1.0.jar" + RepositoryCache.SHA_1), "ghi");
+            metadata = index.get(artifact);
+            Assertions.assertEquals(Optional.of("ghi"), metadata.sha1());
+            Assertions.assertEquals(12, metadata.size());
+        } finally {
+            RootStorageManager.deleteRecursive(dir);
+        }
+    }
+}
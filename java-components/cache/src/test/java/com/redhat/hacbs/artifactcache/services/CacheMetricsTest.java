@@ -0,0 +1,139 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import jakarta.inject.Inject;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.artifactcache.services.client.maven.MavenClient;
+import com.redhat.hacbs.resources.util.HashUtil;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+public class CacheMetricsTest {
+
+    static final String REPOSITORY = "metrics-stub";
+    static final byte[] POM = "pom contents".getBytes(StandardCharsets.UTF_8);
+
+    @Inject
+    MeterRegistry registry;
+
+    @Test
+    public void testMetersRegisteredAndUpdated() throws Exception {
+        byte[] jar = createJarFile();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        ExecutorService serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            String requestPath = exchange.getRequestURI().getPath();
+            byte[] body;
+            if (requestPath.contains("missing")) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            } else if (requestPath.endsWith(".jar.sha1")) {
+                body = HashUtil.sha1(jar).getBytes(StandardCharsets.UTF_8);
+            } else if (requestPath.endsWith(".sha1")) {
+                body = HashUtil.sha1(POM).getBytes(StandardCharsets.UTF_8);
+            } else if (requestPath.endsWith(".jar")) {
+                body = jar;
+            } else {
+                body = POM;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Path temp = Files.createTempDirectory("cache-test");
+        try {
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            MavenClient client = new MavenClient(REPOSITORY, URI.create("http://localhost:" + server.getAddress().getPort()),
+                    0, null, null);
+            RepositoryCache cache = new RepositoryCache(storageManager,
+                    new Repository(REPOSITORY, "http://localhost", RepositoryType.MAVEN2, client), true);
+            CacheFacade facade = new CacheFacade(Map.of("metrics", new BuildPolicy(List.of(cache))), false, 1);
+
+            var requestContext = Arc.container().requestContext();
+            requestContext.activate();
+            try {
+                for (var i = 0; i < 2; ++i) {
+                    try (var r = facade.getArtifactFile("metrics", "com/acme", "test", "1.0", "test-1.0.pom", true).get()) {
+                        Assertions.assertArrayEquals(POM, r.getData().readAllBytes());
+                    }
+                    try (var r = facade.getArtifactFile("metrics", "com/acme", "test", "1.0", "test-1.0.jar", true).get()) {
+                        r.getData().readAllBytes();
+                    }
+                }
+                Assertions.assertTrue(
+                        facade.getArtifactFile("metrics", "com/acme", "missing", "1.0", "missing-1.0.pom", true).isEmpty());
+            } finally {
+                requestContext.terminate();
+            }
+
+            Assertions.assertEquals(1, requestCount("pom", "miss"));
+            Assertions.assertEquals(1, requestCount("pom", "hit"));
+            Assertions.assertEquals(1, requestCount("jar", "miss"));
+            Assertions.assertEquals(1, requestCount("jar", "transformed_hit"));
+            Assertions.assertEquals(1, requestCount("pom", "not_found"));
+
+            var upstream = registry.find(RepositoryMetrics.UPSTREAM_REQUESTS)
+                    .tags(RepositoryMetrics.REPOSITORY, REPOSITORY, RepositoryMetrics.TYPE, "pom",
+                            RepositoryMetrics.RESULT, "found")
+                    .timer();
+            Assertions.assertNotNull(upstream);
+            Assertions.assertEquals(1, upstream.count());
+            var bytes = registry.find(RepositoryMetrics.UPSTREAM_BYTES)
+                    .tags(RepositoryMetrics.REPOSITORY, REPOSITORY, RepositoryMetrics.TYPE, "jar")
+                    .summary();
+            Assertions.assertNotNull(bytes);
+            Assertions.assertEquals(jar.length, bytes.totalAmount());
+
+            var hits = registry.find(CacheFacade.POLICY_REQUESTS).tags("policy", "metrics", "result", "hit").counter();
+            var misses = registry.find(CacheFacade.POLICY_REQUESTS).tags("policy", "metrics", "result", "miss").counter();
+            Assertions.assertEquals(2, hits.count());
+            Assertions.assertEquals(3, misses.count());
+        } finally {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            LocalCacheTest.deleteRecursive(temp);
+        }
+    }
+
+    long requestCount(String type, String result) {
+        var timer = registry.find(RepositoryMetrics.ARTIFACT_REQUESTS)
+                .tags(RepositoryMetrics.REPOSITORY, REPOSITORY, RepositoryMetrics.TYPE, type, RepositoryMetrics.RESULT, result)
+                .timer();
+        Assertions.assertNotNull(timer, "No timer for " + type + " " + result);
+        return timer.count();
+    }
+
+    byte[] createJarFile() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(baos)) {
+            jar.putNextEntry(new ZipEntry(getClass().getName().replace(".", "/") + ".class"));
+            jar.write(getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes());
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,126 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.artifactcache.services.client.maven.MavenClient;
+import com.redhat.hacbs.resources.util.HashUtil;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+public class DownloadCoalescingTest {
+
+    static final int REQUESTS = 200;
+    static final byte[] ARTIFACT = "artifact contents".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testConcurrentDownloadsAreCoalesced() throws Exception {
+        AtomicInteger artifactRequests = new AtomicInteger();
+        CountDownLatch upstreamRelease = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        ExecutorService serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            String requestPath = exchange.getRequestURI().getPath();
+            byte[] body;
+            if (requestPath.endsWith(".sha1")) {
+                body = HashUtil.sha1(ARTIFACT).getBytes(StandardCharsets.UTF_8);
+            } else {
+                if (requestPath.endsWith("coalesced-1.0.jar")) {
+                    artifactRequests.incrementAndGet();
+                    try {
+                        upstreamRelease.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                body = ARTIFACT;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Path temp = Files.createTempDirectory("cache-test");
+        //waiters block on the in progress download, so each one needs its own thread
+        ExecutorService requestExecutor = Executors.newFixedThreadPool(REQUESTS);
+        ExecutorService otherExecutor = Executors.newSingleThreadExecutor();
+        try {
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            MavenClient client = new MavenClient("stub", URI.create("http://localhost:" + server.getAddress().getPort()), 0,
+                    null, null);
+            RepositoryCache cache = new RepositoryCache(storageManager,
+                    new Repository("stub", "http://localhost", RepositoryType.MAVEN2, client), true);
+
+            CountDownLatch started = new CountDownLatch(REQUESTS);
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (var i = 0; i < REQUESTS; ++i) {
+                results.add(requestExecutor.submit(() -> {
+                    started.countDown();
+                    return fetch(cache, "coalesced");
+                }));
+            }
+            Assertions.assertTrue(started.await(30, TimeUnit.SECONDS));
+            long timeout = System.currentTimeMillis() + 30000;
+            while (artifactRequests.get() == 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            //while the upstream download is stalled the cache must still serve other artifacts
+            Assertions.assertArrayEquals(ARTIFACT,
+                    otherExecutor.submit(() -> fetch(cache, "other")).get(30, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, cache.inProgressDownloads.size());
+            for (var result : results) {
+                Assertions.assertFalse(result.isDone());
+            }
+            upstreamRelease.countDown();
+            for (var result : results) {
+                Assertions.assertArrayEquals(ARTIFACT, result.get(30, TimeUnit.SECONDS));
+            }
+            Assertions.assertEquals(1, artifactRequests.get());
+            Assertions.assertTrue(cache.inProgressDownloads.isEmpty());
+        } finally {
+            upstreamRelease.countDown();
+            requestExecutor.shutdownNow();
+            otherExecutor.shutdownNow();
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            LocalCacheTest.deleteRecursive(temp);
+        }
+    }
+
+    static byte[] fetch(RepositoryCache cache, String artifact) throws Exception {
+        var requestContext = Arc.container().requestContext();
+        requestContext.activate();
+        try {
+            Optional<ArtifactResult> result = cache.getArtifactFile("com/acme", artifact, "1.0", artifact + "-1.0.jar", false,
+                    false);
+            Assertions.assertTrue(result.isPresent());
+            try (var r = result.get()) {
+                return r.getData().readAllBytes();
+            }
+        } finally {
+            requestContext.terminate();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+public class GavLockStressTestCase {
+
+    static final int READERS = 16;
+    static final long DURATION = 2000;
+    static final String CONTENTS = "contents";
+
+    @Test
+    public void testDeleteNeverRemovesFileInUse() throws Exception {
+        Path temp = Files.createTempDirectory("cache-test");
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        try {
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            HedgedLookupTestCase.StubRepository client = new HedgedLookupTestCase.StubRepository("test", 0, CONTENTS);
+            RepositoryCache cache = new RepositoryCache(storageManager.resolve("test"),
+                    new Repository("test", "http://test", RepositoryType.MAVEN2, client), false);
+
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger reads = new AtomicInteger();
+            AtomicInteger deletes = new AtomicInteger();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (var i = 0; i < READERS; ++i) {
+                tasks.add(executor.submit(() -> {
+                    while (!done.get()) {
+                        var result = cache.getArtifactFile("com/acme", "test", "1.0", "test-1.0.pom", false, false);
+                        Assertions.assertTrue(result.isPresent());
+                        try (var r = result.get()) {
+                            Path file = (Path) r.getFileOrStream();
+                            Assertions.assertTrue(Files.exists(file), "File deleted before it was read");
+                            Assertions.assertEquals(CONTENTS, new String(r.getData().readAllBytes(), StandardCharsets.UTF_8));
+                            Thread.yield();
+                            Assertions.assertTrue(Files.exists(file), "File deleted while it was being read");
+                        }
+                        reads.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            tasks.add(executor.submit(() -> {
+                while (!done.get()) {
+                    cache.deleteGav("com.acme:test:1.0");
+                    deletes.incrementAndGet();
+                }
+                return null;
+            }));
+            Thread.sleep(DURATION);
+            done.set(true);
+            for (var i : tasks) {
+                i.get();
+            }
+            Assertions.assertTrue(reads.get() > 0);
+            Assertions.assertTrue(deletes.get() > 0);
+            //the file was actually deleted and downloaded again
+            Assertions.assertTrue(client.requests > 1, "Expected the file to be downloaded multiple times");
+            Assertions.assertTrue(cache.inUseTracker.isEmpty());
+        } finally {
+            executor.shutdownNow();
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.resources.util.HashUtil;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+public class HedgedLookupTestCase {
+
+    static final long LATENCY = 300;
+
+    @Test
+    public void testHigherPriorityResultWins() throws Exception {
+        runTest(List.of(new StubRepository("first", LATENCY, "first"), new StubRepository("second", 10, "second")),
+                facade -> {
+                    Assertions.assertEquals("first", fetch(facade));
+                });
+    }
+
+    @Test
+    public void testMissesAreQueriedInParallel() throws Exception {
+        runTest(List.of(new StubRepository("first", LATENCY, null), new StubRepository("second", LATENCY, null),
+                new StubRepository("third", LATENCY, "third"), new StubRepository("fourth", 10, "fourth")), facade -> {
+                    long start = System.currentTimeMillis();
+                    Assertions.assertEquals("third", fetch(facade));
+                    long time = System.currentTimeMillis() - start;
+                    //sequential lookups would take at least 3 * LATENCY
+                    Assertions.assertTrue(time < 2 * LATENCY, "Lookup took " + time + "ms");
+                });
+    }
+
+    @Test
+    public void testAllMiss() throws Exception {
+        runTest(List.of(new StubRepository("first", 10, null), new StubRepository("second", 10, null)),
+                facade -> Assertions.assertNull(fetch(facade)));
+    }
+
+    @Test
+    public void testCachedCopyPreferred() throws Exception {
+        StubRepository first = new StubRepository("first", LATENCY, null);
+        StubRepository second = new StubRepository("second", 10, "second");
+        runTest(List.of(first, second), facade -> {
+            Assertions.assertEquals("second", fetch(facade));
+            int firstRequests = first.requests;
+            //the second lookup is served from disk without going to the remotes
+            Assertions.assertEquals("second", fetch(facade));
+            Assertions.assertEquals(firstRequests, first.requests);
+        });
+    }
+
+    @Test
+    public void testLosingLookupsDoNotDownload() throws Exception {
+        StubRepository second = new StubRepository("second", LATENCY, "second");
+        runTest(List.of(new StubRepository("first", 10, "first"), second), facade -> {
+            Assertions.assertEquals("first", fetch(facade));
+            //give the losing lookup time to get its response
+            try {
+                Thread.sleep(3 * LATENCY);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            Assertions.assertEquals(1, second.requests);
+            Assertions.assertEquals(0, second.downloads.get());
+        });
+    }
+
+    static String fetch(CacheFacade facade) {
+        var result = facade.getArtifactFile("default", "test", "test", "1.0", "test-1.0.pom", false);
+        if (result.isEmpty()) {
+            return null;
+        }
+        try (var r = result.get()) {
+            return new String(r.getData().readAllBytes(), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void runTest(List<StubRepository> repositories, Consumer<CacheFacade> consumer) throws Exception {
+        Path temp = Files.createTempDirectory("cache-test");
+        try {
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            List<RepositoryCache> caches = new ArrayList<>();
+            for (var i : repositories) {
+                caches.add(new RepositoryCache(storageManager.resolve(i.name),
+                        new Repository(i.name, "http://" + i.name, RepositoryType.MAVEN2, i), false));
+            }
+            consumer.accept(new CacheFacade(Map.of("default", new BuildPolicy(caches)), true, 4));
+        } finally {
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+
+    static class StubRepository implements RepositoryClient {
+
+        final String name;
+        final long latency;
+        final String contents;
+        volatile int requests;
+        final AtomicInteger downloads = new AtomicInteger();
+
+        StubRepository(String name, long latency, String contents) {
+            this.name = name;
+            this.latency = latency;
+            this.contents = contents;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target) {
+            requests++;
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (contents == null) {
+                return Optional.empty();
+            }
+            byte[] data = contents.getBytes(StandardCharsets.UTF_8);
+            InputStream body = new ByteArrayInputStream(data) {
+                boolean read;
+
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (!read) {
+                        read = true;
+                        downloads.incrementAndGet();
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+            return Optional.of(new ArtifactResult(null, body, data.length, Optional.of(HashUtil.sha1(data)), Map.of()));
+        }
+
+        @Override
+        public Optional<ArtifactResult> getMetadataFile(String group, String target) {
+            return Optional.empty();
+        }
+    }
+}
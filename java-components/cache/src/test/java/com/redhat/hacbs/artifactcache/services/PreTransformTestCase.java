@@ -0,0 +1,102 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.resources.util.HashUtil;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PreTransformTestCase {
+
+    @Test
+    public void testJarTransformedInBackgroundAfterDownload() throws Exception {
+        byte[] jar = createJarFile();
+        Path temp = Files.createTempDirectory("cache-test");
+        try {
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            RepositoryCache cache = new RepositoryCache(storageManager.resolve("central"),
+                    new Repository("central", "http://central", RepositoryType.MAVEN2,
+                            new JarRepository(jar)),
+                    true, registry);
+            Assertions.assertNotNull(cache.transformationQueue);
+
+            //an untracked request downloads the jar, which queues the transformation
+            var result = cache.getArtifactFile("com/acme", "test", "1.0", "test-1.0.jar", false, false);
+            Assertions.assertTrue(result.isPresent());
+            result.get().close();
+
+            long end = System.currentTimeMillis() + 10000;
+            while (!cache.inProgressTransformations.isEmpty() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assertions.assertTrue(cache.inProgressTransformations.isEmpty());
+            Assertions.assertEquals(1, transformations(registry));
+            Assertions.assertEquals(0, cache.transformationQueue.depth());
+            Assertions.assertNotNull(Metrics.globalRegistry.find(TransformationQueue.QUEUE_DEPTH).gauge());
+
+            //the tracked request is then served from the already transformed jar
+            RepositoryCache.Outcome[] outcome = new RepositoryCache.Outcome[1];
+            result = cache.getArtifactFile("com/acme", "test", "1.0", "test-1.0.jar", true, false, o -> outcome[0] = o);
+            Assertions.assertTrue(result.isPresent());
+            try (var r = result.get()) {
+                Assertions.assertTrue(r.getFileOrStream().toString().contains(RepositoryCache.TRANSFORMED));
+            }
+            Assertions.assertEquals(RepositoryCache.Outcome.TRANSFORMED_HIT, outcome[0]);
+            Assertions.assertEquals(1, transformations(registry));
+            Assertions.assertNull(registry.find(RepositoryMetrics.TRANSFORMATION_WAIT).timer());
+        } finally {
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+
+    static double transformations(SimpleMeterRegistry registry) {
+        return registry.find(RepositoryMetrics.TRANSFORMATIONS).counters().stream().mapToDouble(c -> c.count()).sum();
+    }
+
+    byte[] createJarFile() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(baos)) {
+            jar.putNextEntry(new ZipEntry(getClass().getName().replace(".", "/") + ".class"));
+            jar.write(getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes());
+        }
+        return baos.toByteArray();
+    }
+
+    static class JarRepository implements RepositoryClient {
+
+        final byte[] jar;
+
+        JarRepository(byte[] jar) {
+            this.jar = jar;
+        }
+
+        @Override
+        public String getName() {
+            return "jar";
+        }
+
+        @Override
+        public Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target) {
+            return Optional.of(new ArtifactResult(null, new ByteArrayInputStream(jar), jar.length,
+                    Optional.of(HashUtil.sha1(jar)), Map.of()));
+        }
+
+        @Override
+        public Optional<ArtifactResult> getMetadataFile(String group, String target) {
+            return Optional.empty();
+        }
+    }
+}
@@ -6,9 +6,18 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.jupiter.api.Assertions;
@@ -25,6 +34,7 @@ public class StorageManagerTestCase {
         }
         Path path = Files.createTempDirectory("test");
         RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        manager.initialLoad();
         Path f1 = manager.accessDirectory("t1").resolve("f1");
         Thread.sleep(2);
         Path f2 = manager.accessDirectory("t2").resolve("f2");
@@ -71,6 +81,220 @@ public class StorageManagerTestCase {
 
     }
 
+    @Test
+    public void testEvictionOrderIsLeastRecentlyUsed() throws IOException, InterruptedException {
+        Path path = Files.createTempDirectory("test");
+        try {
+            //30 directories of just over 100 bytes on a 10000 byte disk, so at least 10 need to be deleted
+            RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.25, 0.2, 1);
+            manager.initialLoad();
+            List<String> dirs = new ArrayList<>();
+            for (var i = 0; i < 30; ++i) {
+                dirs.add("dir" + i);
+                Files.writeString(manager.accessDirectory("dir" + i).resolve("file"), "a".repeat(100));
+                Thread.sleep(2);
+            }
+            Random random = new Random(42);
+            for (var i = 0; i < 100; ++i) {
+                manager.accessDirectory(dirs.get(random.nextInt(dirs.size())));
+                Thread.sleep(2);
+            }
+            //the order the previous implementation used, sorting by last access time
+            List<String> expected = manager.inUseMap.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().get()))
+                    .map(Map.Entry::getKey)
+                    .toList();
+            manager.checkSpace();
+            //the evicted directories must be exactly the least recently used ones
+            int evicted = 0;
+            while (!Files.exists(path.resolve(expected.get(evicted)))) {
+                evicted++;
+            }
+            Assertions.assertTrue(evicted >= 10, "Only evicted " + evicted);
+            for (var i = evicted; i < expected.size(); ++i) {
+                Assertions.assertTrue(Files.exists(path.resolve(expected.get(i)).resolve("file")),
+                        "Unexpected eviction of " + expected.get(i) + " at position " + i);
+            }
+            //stale records are compacted away
+            manager.compactAccessQueue();
+            Assertions.assertEquals(expected.size() - evicted, manager.accessQueue.size());
+        } finally {
+            RootStorageManager.deleteRecursive(path);
+        }
+    }
+
+    @Test
+    public void testWritesTriggerEviction() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        try {
+            RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            manager.initialLoad();
+            Path old = manager.accessDirectory("old").resolve("file");
+            Files.writeString(old, "a".repeat(1000));
+            Thread.sleep(2);
+            //there is no timer, so eviction can only be triggered by the writes
+            var client = new HedgedLookupTestCase.StubRepository("test", 0, "a".repeat(1000));
+            RepositoryCache cache = new RepositoryCache(manager.resolve("test"),
+                    new Repository("test", "http://test", RepositoryType.MAVEN2, client), false);
+            //6000 bytes of downloads takes the projected free space under the high water mark
+            for (var i = 0; i < 6; ++i) {
+                var result = cache.getArtifactFile("com/acme", "test", "1." + i, "test-1." + i + ".pom", false, false);
+                Assertions.assertTrue(result.isPresent());
+                result.get().close();
+            }
+            long timeout = System.currentTimeMillis() + 10000;
+            while (Files.exists(old) && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            Assertions.assertFalse(Files.exists(old), "Least recently used entry was not evicted");
+            //checks are serialized, so this waits for the background check to finish before cleaning up
+            manager.checkSpace();
+        } finally {
+            RootStorageManager.deleteRecursive(path);
+        }
+    }
+
+    @Test
+    public void testBurstAfterTriggeredCheck() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        try {
+            RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            manager.initialLoad();
+            Path first = manager.accessDirectory("first").resolve("file");
+            Files.writeString(first, "a".repeat(3000));
+            manager.bytesWritten(3000);
+            Thread.sleep(2);
+            Path second = manager.accessDirectory("second").resolve("file");
+            Files.writeString(second, "a".repeat(3000));
+            //this takes the projected free space under the high water mark
+            manager.bytesWritten(3000);
+            waitForDeletion(first);
+            Thread.sleep(2);
+
+            //a burst of writes straight after the check must trigger another one, rather than waiting for the timer
+            Path third = manager.accessDirectory("third").resolve("file");
+            for (var i = 0; i < 30; ++i) {
+                Files.writeString(third, "a".repeat(100), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                manager.bytesWritten(100);
+            }
+            waitForDeletion(second);
+            Assertions.assertTrue(Files.exists(third));
+            //checks are serialized, so this waits for any background check to finish before cleaning up
+            manager.checkSpace();
+        } finally {
+            RootStorageManager.deleteRecursive(path);
+        }
+    }
+
+    static void waitForDeletion(Path file) throws InterruptedException {
+        //well within the minimum interval between triggered checks
+        long timeout = System.currentTimeMillis() + RootStorageManager.MIN_TRIGGERED_CHECK_INTERVAL / 2;
+        while (Files.exists(file) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Assertions.assertFalse(Files.exists(file), "Least recently used entry was not evicted");
+    }
+
+    @Test
+    public void testJournalRecoveryAfterCrash() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        try {
+            RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            manager.initialLoad();
+            for (var i = 0; i < 5; ++i) {
+                manager.accessDirectory("dir" + i);
+                Thread.sleep(2);
+            }
+            manager.accessFile("dir0/file"); //dir0 is now the most recently used
+            manager.delete("dir4");
+            manager.flushJournal();
+            Map<String, Long> expected = AccessJournal.times(manager.inUseMap);
+            Assertions.assertEquals(4, expected.size());
+            //simulate a crash part of the way through writing a record
+            Files.writeString(path.resolve(AccessJournal.FILE_NAME), "12345\tdir", StandardOpenOption.APPEND);
+
+            RootStorageManager restarted = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            restarted.initialLoad();
+            Assertions.assertEquals(expected, AccessJournal.times(restarted.inUseMap));
+            //the queue is rebuilt in least recently used order
+            Assertions.assertEquals(List.of("dir1", "dir2", "dir3", "dir0"),
+                    restarted.accessQueue.stream().map(RootStorageManager.AccessRecord::relative).toList());
+            //the partial record has been removed, so new records are not appended to it
+            Assertions.assertTrue(Files.readString(path.resolve(AccessJournal.FILE_NAME)).endsWith("\n"));
+            restarted.accessDirectory("dir5");
+            restarted.flushJournal();
+
+            RootStorageManager third = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            third.initialLoad();
+            Assertions.assertEquals(AccessJournal.times(restarted.inUseMap), AccessJournal.times(third.inUseMap));
+            Assertions.assertTrue(third.inUseMap.containsKey("dir5"));
+            Assertions.assertFalse(third.inUseMap.containsKey("dir4"));
+        } finally {
+            RootStorageManager.deleteRecursive(path);
+        }
+    }
+
+    @Test
+    public void testUnflushedDirectoriesRecovered() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        try {
+            RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            //created before the initial load, the journal must not be written until the load is complete
+            manager.accessDirectory("early");
+            manager.flushJournal();
+            Assertions.assertFalse(Files.exists(path.resolve(AccessJournal.FILE_NAME)));
+            manager.initialLoad();
+            manager.accessDirectory("late");
+            //simulate a crash before the next flush
+
+            RootStorageManager restarted = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            restarted.initialLoad();
+            Assertions.assertEquals(Set.of("early", "late"), restarted.inUseMap.keySet());
+
+            //simulate a crash while loading an existing journal
+            RootStorageManager interrupted = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4,
+                    1);
+            interrupted.journal.startLoad();
+            interrupted.accessDirectory("during");
+
+            RootStorageManager recovered = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            recovered.initialLoad();
+            Assertions.assertEquals(Set.of("early", "late", "during"), recovered.inUseMap.keySet());
+            Assertions.assertEquals(3, recovered.accessQueue.size());
+        } finally {
+            RootStorageManager.deleteRecursive(path);
+        }
+    }
+
+    @Test
+    public void testEvictionDuringInitialLoad() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        try {
+            //entries from a previous run that only have marker files
+            RootStorageManager previous = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            Path old1 = previous.accessDirectory("old1");
+            Path old2 = previous.accessDirectory("old2");
+            Files.writeString(old1.resolve("f"), "a".repeat(2000));
+            Files.writeString(old2.resolve("f"), "a".repeat(2000));
+            long now = System.currentTimeMillis();
+            Files.setLastModifiedTime(old1, FileTime.fromMillis(now - 20000));
+            Files.setLastModifiedTime(old2, FileTime.fromMillis(now - 10000));
+
+            RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 10000L), path, 0.5, 0.4, 1);
+            Path recent = manager.accessDirectory("recent");
+            Files.writeString(recent.resolve("f"), "a".repeat(3000));
+            //the scan has found the old entries but the load has not completed
+            manager.loadFromMarkers(new AtomicInteger());
+            manager.checkSpace();
+            Assertions.assertFalse(Files.exists(old1));
+            Assertions.assertFalse(Files.exists(old2));
+            Assertions.assertTrue(Files.exists(recent.resolve("f")));
+            Assertions.assertEquals(Set.of("recent"), manager.inUseMap.keySet());
+        } finally {
+            RootStorageManager.deleteRecursive(path);
+        }
+    }
+
     private static class MockFileSystem extends FileStore {
 
         final Path path;
@@ -107,7 +331,10 @@ public class StorageManagerTestCase {
             Files.walkFileTree(path, new SimpleFileVisitor<>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    count.getAndAdd(Files.size(file));
+                    //the journal is written as directories are created, so it is left out to keep the sizes exact
+                    if (!file.getFileName().toString().startsWith(AccessJournal.FILE_NAME)) {
+                        count.getAndAdd(Files.size(file));
+                    }
                     return super.visitFile(file, attrs);
                 }
             });
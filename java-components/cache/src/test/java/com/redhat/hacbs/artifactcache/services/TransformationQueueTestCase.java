@@ -0,0 +1,90 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class TransformationQueueTestCase {
+
+    @Test
+    public void testRequestsReprioritiseInPlace() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TransformationQueue queue = new TransformationQueue(1, 3, registry);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        //keep the only worker busy while the queue is built up
+        Assertions.assertTrue(queue.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        Assertions.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        TransformationQueue.Task a = task("a", ran, done);
+        TransformationQueue.Task b = task("b", ran, done);
+        TransformationQueue.Task c = task("c", ran, done);
+        Assertions.assertTrue(queue.submit(a));
+        Assertions.assertTrue(queue.submit(b));
+        Assertions.assertTrue(queue.submit(c));
+        //repeated requests do not add entries
+        for (var i = 0; i < 100; ++i) {
+            queue.requested(a);
+            Assertions.assertTrue(queue.submit(a));
+        }
+        Assertions.assertEquals(3, queue.depth());
+        Assertions.assertEquals(3, registry.find(TransformationQueue.QUEUE_DEPTH).gauge().value());
+        //the queue is full, so new work is rejected
+        Assertions.assertFalse(queue.submit(task("d", ran, done)));
+
+        release.countDown();
+        Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("a", "c", "b"), ran);
+        Assertions.assertEquals(0, queue.depth());
+    }
+
+    @Test
+    public void testClaimedTaskNotRun() throws Exception {
+        TransformationQueue queue = new TransformationQueue(1, 10, new SimpleMeterRegistry());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Assertions.assertTrue(started.await(10, TimeUnit.SECONDS));
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        TransformationQueue.Task claimed = task("claimed", ran, done);
+        queue.submit(claimed);
+        queue.submit(task("other", ran, done));
+        Assertions.assertTrue(queue.claim(claimed));
+        Assertions.assertFalse(queue.claim(claimed));
+        Assertions.assertEquals(1, queue.depth());
+
+        release.countDown();
+        Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("other"), ran);
+    }
+
+    static TransformationQueue.Task task(String name, List<String> ran, CountDownLatch done) {
+        return () -> {
+            ran.add(name);
+            done.countDown();
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package com.redhat.hacbs.artifactcache.services.client.maven;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.resources.util.HashUtil;
+import com.sun.net.httpserver.HttpServer;
+
+import io.quarkus.arc.Arc;
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+public class MavenClientTest {
+
+    static final long RTT = 200;
+    static final byte[] ARTIFACT = "artifact contents".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testChecksumFetchedInParallel() throws Exception {
+        CountDownLatch checksumRequested = new CountDownLatch(1);
+        AtomicBoolean parallel = new AtomicBoolean();
+        runTest(HashUtil.sha1(ARTIFACT), checksumRequested, parallel,
+                client -> Assertions.assertEquals(Optional.of(HashUtil.sha1(ARTIFACT)), fetch(client, "test")));
+        //the artifact response is held until the checksum request arrives, which only happens if they are in parallel
+        Assertions.assertTrue(parallel.get());
+    }
+
+    @Test
+    public void testExpectedChecksumPassedThrough() throws Exception {
+        //the client does not verify the checksum, a mismatch is handled by the cache that commits the download
+        runTest("wrong", client -> Assertions.assertEquals(Optional.of("wrong"), fetch(client, "test")));
+    }
+
+    @Test
+    public void testMissingArtifact() throws Exception {
+        runTest(HashUtil.sha1(ARTIFACT), client -> {
+            var requestContext = Arc.container().requestContext();
+            requestContext.activate();
+            try {
+                Assertions.assertTrue(client.getArtifactFile("com/acme", "missing", "1.0", "missing-1.0.jar").isEmpty());
+            } finally {
+                requestContext.terminate();
+            }
+            //the checksum request is aborted rather than left to complete
+            long timeout = System.currentTimeMillis() + RTT;
+            while (MavenClient.CHECKSUM_EXECUTOR.getActiveCount() > 0 && System.currentTimeMillis() < timeout) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            Assertions.assertEquals(0, MavenClient.CHECKSUM_EXECUTOR.getActiveCount());
+        });
+    }
+
+    @Test
+    public void testBackoff() {
+        for (var i = 1; i < 10; ++i) {
+            long expected = Math.min(60000, 1000L << (i - 1));
+            long backoff = MavenClient.backoff(1000, 60000, i);
+            Assertions.assertTrue(backoff >= expected / 2 && backoff <= expected, "Unexpected backoff " + backoff);
+        }
+        Assertions.assertEquals(0, MavenClient.backoff(0, 60000, 1));
+    }
+
+    static Optional<String> fetch(MavenClient client, String artifact) {
+        var requestContext = Arc.container().requestContext();
+        requestContext.activate();
+        try {
+            var result = client.getArtifactFile("com/acme", artifact, "1.0", artifact + "-1.0.jar");
+            Assertions.assertTrue(result.isPresent());
+            try (var r = result.get()) {
+                Assertions.assertArrayEquals(ARTIFACT, r.getData().readAllBytes());
+                return r.getExpectedSha();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    void runTest(String sha1, Consumer<MavenClient> consumer) throws Exception {
+        runTest(sha1, null, null, consumer);
+    }
+
+    /**
+     * @param checksumRequested If present the test artifact response is held until this is counted down by the checksum
+     *        request, and whether that happened is stored in checksumBeforeArtifact
+     */
+    void runTest(String sha1, CountDownLatch checksumRequested, AtomicBoolean checksumBeforeArtifact,
+            Consumer<MavenClient> consumer) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        ExecutorService serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            String requestPath = exchange.getRequestURI().getPath();
+            try {
+                if (checksumRequested != null && requestPath.endsWith("test-1.0.jar.sha1")) {
+                    checksumRequested.countDown();
+                }
+                Thread.sleep(RTT);
+                if (checksumRequested != null && requestPath.endsWith("test-1.0.jar")) {
+                    checksumBeforeArtifact.set(checksumRequested.await(10 * RTT, TimeUnit.MILLISECONDS));
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (requestPath.contains("missing")) {
+                if (requestPath.endsWith(".sha1")) {
+                    //much slower than the artifact, so it is still in progress when the artifact is not found
+                    try {
+                        Thread.sleep(10 * RTT);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = requestPath.endsWith(".sha1") ? sha1.getBytes(StandardCharsets.UTF_8) : ARTIFACT;
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            consumer.accept(new MavenClient("stub", URI.create("http://localhost:" + server.getAddress().getPort()), 0,
+                    null, null));
+        } finally {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.artifactcache.artifactwatch.RebuiltArtifacts;
+import com.redhat.hacbs.artifactcache.services.RootStorageManager;
+import com.redhat.hacbs.resources.util.ShaUtil;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+public class OCILayerStoreTestCase {
+
+    static final int IMAGES = 20;
+    static final int LAYERS = 4;
+    static final String GROUP = "com.acme";
+
+    @Test
+    public void testSharedLayersPulledOnce() throws Exception {
+        Path temp = Files.createTempDirectory("oci-test");
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try (RegistryStub registry = new RegistryStub()) {
+            //20 GAV images whose artifacts layers are shared, as happens when the same build is deployed several times
+            byte[][] layers = new byte[LAYERS][];
+            for (var i = 0; i < LAYERS; ++i) {
+                Map<String, String> files = new HashMap<>();
+                for (var j = i; j < IMAGES; j += LAYERS) {
+                    files.put("com/acme/artifact" + j + "/1.0/artifact" + j + "-1.0.pom", "layer " + i);
+                }
+                layers[i] = RegistryStub.layer(files);
+            }
+            byte[] base = RegistryStub.layer(Map.of("base.txt", "base"));
+            for (var i = 0; i < IMAGES; ++i) {
+                registry.addImage(ShaUtil.sha256sum(GROUP, "artifact" + i, "1.0"), base, layers[i % LAYERS]);
+            }
+
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            OCILayerStore store = new OCILayerStore(storageManager.resolve(OCILayerStore.STORE));
+            OCIRepositoryClient client = createClient(registry, storageManager, store);
+
+            List<Future<String>> results = new ArrayList<>();
+            for (var round = 0; round < 5; ++round) {
+                for (var i = 0; i < IMAGES; ++i) {
+                    String artifact = "artifact" + i;
+                    results.add(executor.submit(() -> {
+                        try (var result = client.getArtifactFile(GROUP, artifact, "1.0", artifact + "-1.0.pom").get()
+                                .getData()) {
+                            return new String(result.readAllBytes(), StandardCharsets.UTF_8);
+                        }
+                    }));
+                }
+            }
+            for (var i = 0; i < results.size(); ++i) {
+                Assertions.assertEquals("layer " + (i % IMAGES) % LAYERS, results.get(i).get());
+            }
+            //only the artifacts layer is pulled, and each one only once
+            Assertions.assertEquals(LAYERS, registry.blobRequests.size());
+            for (var count : registry.blobRequests.values()) {
+                Assertions.assertEquals(1, count.get());
+            }
+
+            //after a restart the index is used, so a deleted image view is recreated without pulling the layer
+            String manifest = registry.manifests.get(ShaUtil.sha256sum(GROUP, "artifact0", "1.0"));
+            String imageDigest = RegistryStub.sha256(manifest.getBytes(StandardCharsets.UTF_8));
+            Assertions.assertTrue(Files.isDirectory(temp.resolve("hacbs").resolve(imageDigest)));
+            storageManager.resolve("hacbs").delete(imageDigest);
+            Assertions.assertFalse(Files.exists(temp.resolve("hacbs").resolve(imageDigest)));
+            OCIRepositoryClient restarted = createClient(registry,
+                    storageManager, new OCILayerStore(storageManager.resolve(OCILayerStore.STORE)));
+            try (var result = restarted.getArtifactFile(GROUP, "artifact0", "1.0", "artifact0-1.0.pom").get().getData()) {
+                Assertions.assertEquals("layer 0", new String(result.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            Assertions.assertEquals(LAYERS, registry.blobRequests.size());
+            for (var count : registry.blobRequests.values()) {
+                Assertions.assertEquals(1, count.get());
+            }
+        } finally {
+            executor.shutdownNow();
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+
+    @Test
+    public void testEvictedContentPulledAgain() throws Exception {
+        Path temp = Files.createTempDirectory("oci-test");
+        try (RegistryStub registry = new RegistryStub()) {
+            byte[] base = RegistryStub.layer(Map.of("base.txt", "base"));
+            byte[] layer = RegistryStub.layer(Map.of("com/acme/artifact/1.0/artifact-1.0.pom", "pom"));
+            String manifest = registry.addImage(ShaUtil.sha256sum(GROUP, "artifact", "1.0"), base, layer);
+            String imageDigest = RegistryStub.sha256(manifest.getBytes(StandardCharsets.UTF_8));
+            String layerDigest = RegistryStub.sha256(layer);
+
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            OCILayerStore store = new OCILayerStore(storageManager.resolve(OCILayerStore.STORE));
+            OCIRepositoryClient client = createClient(registry, storageManager, store);
+            try (var result = client.getArtifactFile(GROUP, "artifact", "1.0", "artifact-1.0.pom").get().getData()) {
+                Assertions.assertEquals("pom", new String(result.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            Assertions.assertEquals(1, registry.blobRequests.get(layerDigest).get());
+
+            //the content is removed but the index is left behind, and the image view is deleted
+            Path layerDir = temp.resolve(OCILayerStore.STORE).resolve(layerDigest.substring(0, 2)).resolve(layerDigest);
+            Assertions.assertTrue(Files.exists(layerDir.resolve(OCILayerStore.INDEX)));
+            RootStorageManager.deleteRecursive(layerDir.resolve(OCILayerStore.CONTENT));
+            storageManager.resolve("hacbs").delete(imageDigest);
+
+            try (var result = client.getArtifactFile(GROUP, "artifact", "1.0", "artifact-1.0.pom").get().getData()) {
+                Assertions.assertEquals("pom", new String(result.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            Assertions.assertEquals(2, registry.blobRequests.get(layerDigest).get());
+            Assertions.assertTrue(Files.exists(layerDir.resolve(OCILayerStore.CONTENT)));
+        } finally {
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+
+    static OCIRepositoryClient createClient(RegistryStub registry, RootStorageManager storageManager, OCILayerStore store) {
+        return new OCIRepositoryClient(registry.registry(), "owner", "layers", Optional.empty(), Optional.empty(), true,
+                new RebuiltArtifacts() {
+                    @Override
+                    public boolean isPossiblyRebuilt(String gav) {
+                        return true;
+                    }
+                }, storageManager.resolve("hacbs"), store);
+    }
+}
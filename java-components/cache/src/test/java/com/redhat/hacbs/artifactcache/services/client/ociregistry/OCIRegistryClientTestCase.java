@@ -0,0 +1,99 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.hacbs.artifactcache.services.RootStorageManager;
+import com.redhat.hacbs.common.images.ociclient.LocalImage;
+import com.redhat.hacbs.common.images.ociclient.OCIRegistryClient;
+
+public class OCIRegistryClientTestCase {
+
+    static final String OWNER = "owner";
+    static final String POM = "com/acme/test/1.0/test-1.0.pom";
+
+    RegistryStub registry;
+
+    @BeforeEach
+    public void start() throws Exception {
+        registry = new RegistryStub();
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        registry.close();
+    }
+
+    @Test
+    public void testTokenReusedAcrossPulls() {
+        for (var i = 0; i < 100; ++i) {
+            //a new client each time, as the cache does for every repository it is configured with
+            OCIRegistryClient client = new OCIRegistryClient(registry.registry(), OWNER, "reuse", Optional.empty(), true);
+            Assertions.assertTrue(client.pullImage("1.0").isPresent());
+        }
+        Assertions.assertEquals(100, registry.manifestRequests.get());
+        Assertions.assertEquals(1, registry.tokenRequests.get());
+    }
+
+    @Test
+    public void testTokenRefreshedWhenRejected() {
+        OCIRegistryClient client = new OCIRegistryClient(registry.registry(), OWNER, "refresh", Optional.empty(), true);
+        Assertions.assertTrue(client.pullImage("1.0").isPresent());
+        Assertions.assertEquals(1, registry.tokenRequests.get());
+        //the token has expired
+        registry.validToken = "expired";
+        Assertions.assertTrue(client.pullImage("1.0").isPresent());
+        Assertions.assertEquals(2, registry.tokenRequests.get());
+        Assertions.assertTrue(client.pullImage("1.0").isPresent());
+        Assertions.assertEquals(2, registry.tokenRequests.get());
+    }
+
+    @Test
+    public void testLayerExtracted() throws Exception {
+        registry.addImage("1.0", RegistryStub.layer(Map.of(POM, "content")));
+        Path temp = Files.createTempDirectory("oci-test");
+        try {
+            LocalImage image = new OCIRegistryClient(registry.registry(), OWNER, "layer", Optional.empty(), true)
+                    .pullImage("1.0").orElseThrow();
+            Path output = Files.createDirectories(temp.resolve("artifacts"));
+            image.pullLayer(0, output);
+            Assertions.assertEquals("content", Files.readString(output.resolve(POM)));
+            //the layer is not written to disk first
+            try (var files = Files.list(output)) {
+                Assertions.assertEquals(1, files.count());
+            }
+        } finally {
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+
+    @Test
+    public void testCorruptLayerLeavesNoOutput() throws Exception {
+        byte[] layer = RegistryStub.layer(Map.of(POM, "content"));
+        registry.addImage("1.0", layer);
+        //a valid layer, but not the one with the expected digest
+        registry.blobs.put(RegistryStub.sha256(layer), RegistryStub.layer(Map.of(POM, "tampered")));
+        Path temp = Files.createTempDirectory("oci-test");
+        try {
+            LocalImage image = new OCIRegistryClient(registry.registry(), OWNER, "corrupt", Optional.empty(), true)
+                    .pullImage("1.0").orElseThrow();
+            Path output = Files.createDirectories(temp.resolve("artifacts"));
+            Files.writeString(output.resolve("existing"), "existing");
+            Assertions.assertThrows(IOException.class, () -> image.pullLayer(0, output));
+            try (var files = Files.list(output)) {
+                Assertions.assertEquals(List.of(output.resolve("existing")), files.toList());
+            }
+        } finally {
+            RootStorageManager.deleteRecursive(temp);
+        }
+    }
+}
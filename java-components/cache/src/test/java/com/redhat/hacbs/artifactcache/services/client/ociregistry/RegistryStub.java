@@ -0,0 +1,210 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal OCI registry that serves manifests by tag and blobs by digest, and requires a bearer token from its
+ * token endpoint.
+ */
+class RegistryStub implements Closeable {
+
+    static final String EMPTY_MANIFEST = manifest("empty");
+
+    final HttpServer server;
+    final ServerSocket front;
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final AtomicInteger tokenRequests = new AtomicInteger();
+    final AtomicInteger manifestRequests = new AtomicInteger();
+    /**
+     * Blob requests by digest hash
+     */
+    final Map<String, AtomicInteger> blobRequests = new ConcurrentHashMap<>();
+    /**
+     * Manifests by tag, tags that are not present are served an empty manifest
+     */
+    final Map<String, String> manifests = new ConcurrentHashMap<>();
+    /**
+     * Blobs by digest hash
+     */
+    final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+    volatile String validToken;
+
+    RegistryStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        front = new ServerSocket(0, 50, server.getAddress().getAddress());
+        executor.execute(() -> {
+            while (!front.isClosed()) {
+                try {
+                    Socket socket = front.accept();
+                    executor.execute(() -> forward(socket));
+                } catch (IOException e) {
+                    //closed
+                }
+            }
+        });
+    }
+
+    String registry() {
+        return "localhost:" + front.getLocalPort();
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/v2/auth")) {
+            validToken = "token-" + tokenRequests.incrementAndGet();
+            send(exchange, 200, "application/json", "{\"token\":\"" + validToken + "\"}");
+        } else if (!("Bearer " + validToken).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer realm=\"http://" + registry()
+                    + "/v2/auth\",service=\"" + registry() + "\",scope=\"repository:owner/repo:pull\"");
+            send(exchange, 401, "application/json", "{\"errors\":[{\"code\":\"UNAUTHORIZED\"}]}");
+        } else if (path.contains("/manifests/")) {
+            manifestRequests.incrementAndGet();
+            String tag = path.substring(path.lastIndexOf('/') + 1);
+            send(exchange, 200, "application/vnd.oci.image.manifest.v1+json",
+                    manifests.getOrDefault(tag, EMPTY_MANIFEST));
+        } else if (path.contains("/blobs/sha256:")) {
+            String digest = path.substring(path.lastIndexOf(':') + 1);
+            blobRequests.computeIfAbsent(digest, k -> new AtomicInteger()).incrementAndGet();
+            byte[] blob = blobs.get(digest);
+            if (blob == null) {
+                send(exchange, 404, "application/json", "{}");
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, blob.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(blob);
+            }
+        } else {
+            send(exchange, 404, "application/json", "{}");
+        }
+    }
+
+    /**
+     * Adds an image with the given layers, and returns its manifest.
+     */
+    String addImage(String tag, byte[]... layers) {
+        StringBuilder layerJson = new StringBuilder();
+        for (byte[] layer : layers) {
+            String digest = sha256(layer);
+            blobs.put(digest, layer);
+            if (!layerJson.isEmpty()) {
+                layerJson.append(',');
+            }
+            layerJson.append("{\"mediaType\":\"application/vnd.oci.image.layer.v1.tar+gzip\",\"digest\":\"sha256:")
+                    .append(digest).append("\",\"size\":").append(layer.length).append('}');
+        }
+        String manifest = manifest(tag).replace("\"layers\":[]", "\"layers\":[" + layerJson + "]");
+        manifests.put(tag, manifest);
+        return manifest;
+    }
+
+    /**
+     * A manifest with no layers, the config digest is derived from the name so each one has a different digest.
+     */
+    static String manifest(String name) {
+        return "{\"schemaVersion\":2,\"mediaType\":\"application/vnd.oci.image.manifest.v1+json\","
+                + "\"config\":{\"mediaType\":\"application/vnd.oci.image.config.v1+json\",\"digest\":\"sha256:"
+                + sha256(name.getBytes(StandardCharsets.UTF_8)) + "\",\"size\":2},\"layers\":[]}";
+    }
+
+    /**
+     * Creates a gzipped tar layer containing the given files.
+     */
+    static byte[] layer(Map<String, String> files) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(baos))) {
+            for (var file : files.entrySet()) {
+                byte[] data = file.getValue().getBytes(StandardCharsets.UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+                entry.setSize(data.length);
+                tar.putArchiveEntry(entry);
+                tar.write(data);
+                tar.closeArchiveEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Jib tries HTTPS first and only falls back to HTTP if the TLS handshake fails, however the HTTP server would just
+     * wait for the end of a request line that never comes. The front socket closes TLS connections straight away, so the
+     * handshake fails the same way it would against a real plain HTTP registry, and forwards everything else.
+     */
+    void forward(Socket socket) {
+        try (socket; Socket target = new Socket(server.getAddress().getAddress(), server.getAddress().getPort())) {
+            InputStream in = socket.getInputStream();
+            int first = in.read();
+            if (first == -1 || first == 0x16) {
+                return;
+            }
+            target.getOutputStream().write(first);
+            executor.execute(() -> {
+                try {
+                    target.getInputStream().transferTo(socket.getOutputStream());
+                } catch (IOException e) {
+                    //closed
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        //ignore
+                    }
+                }
+            });
+            in.transferTo(target.getOutputStream());
+        } catch (IOException e) {
+            //closed
+        }
+    }
+
+    static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        front.close();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
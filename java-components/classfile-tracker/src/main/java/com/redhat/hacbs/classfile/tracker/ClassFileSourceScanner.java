@@ -0,0 +1,215 @@
+package com.redhat.hacbs.classfile.tracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the {@link ClassFileSourceAttribute} from a class file without parsing the whole class.
+ * <p>
+ * This walks the constant pool to find the entry offsets, skips over the interfaces, fields and methods, and only
+ * decodes the class level attribute table. Malformed input results in an {@link IllegalArgumentException}, in which
+ * case callers should fall back to ASM.
+ */
+final class ClassFileSourceScanner {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final byte[] ATTRIBUTE_NAME = ClassFileSourceAttribute.ATTRIBUTE_NAME
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] data;
+    private int[] constantPoolOffsets;
+    private int thisClass;
+
+    ClassFileSourceScanner(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Scans the class for the tracking attribute.
+     *
+     * @return The tracking data, or null if the class is not tracked
+     */
+    TrackingData scan() {
+        if (readInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        int offset = readConstantPool(8);
+        thisClass = readUnsignedShort(offset + 2);
+        offset += 6;
+        offset += 2 + readUnsignedShort(offset) * 2;
+        offset = skipMembers(offset);
+        offset = skipMembers(offset);
+        TrackingData result = null;
+        int attributeCount = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; ++i) {
+            int nameIndex = readUnsignedShort(offset);
+            int length = readInt(offset + 2);
+            offset += 6;
+            if (length < 0 || offset + length > data.length) {
+                throw new IllegalArgumentException("Invalid attribute length");
+            }
+            //ASM visits attributes in reverse order, so if there are multiple the first one wins
+            if (isAttributeName(nameIndex)) {
+                TrackingData found = readTrackingData(offset);
+                if (result == null) {
+                    result = found;
+                }
+            }
+            offset += length;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the internal name of the class, only valid after {@link #scan()} has been called.
+     */
+    String getClassName() {
+        int nameIndex = readUnsignedShort(constantPoolOffset(thisClass) + 1);
+        int offset = constantPoolOffset(nameIndex);
+        int length = readUnsignedShort(offset + 1);
+        try {
+            //constant pool strings are in modified UTF-8, which is what readUTF expects
+            return new DataInputStream(new ByteArrayInputStream(data, offset + 1, length + 2)).readUTF();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int readConstantPool(int offset) {
+        int count = readUnsignedShort(offset);
+        offset += 2;
+        constantPoolOffsets = new int[count];
+        for (int i = 1; i < count; ++i) {
+            constantPoolOffsets[i] = offset;
+            int tag = readByte(offset);
+            switch (tag) {
+                case 1: // Utf8
+                    offset += 3 + readUnsignedShort(offset + 1);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    //these take up two entries
+                    ++i;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        return offset;
+    }
+
+    private int skipMembers(int offset) {
+        int count = readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            int attributeCount = readUnsignedShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributeCount; ++j) {
+                int length = readInt(offset + 2);
+                if (length < 0) {
+                    throw new IllegalArgumentException("Invalid attribute length");
+                }
+                offset += 6 + length;
+            }
+        }
+        return offset;
+    }
+
+    private boolean isAttributeName(int index) {
+        int offset = constantPoolOffset(index);
+        if (readByte(offset) != 1) {
+            throw new IllegalArgumentException("Attribute name is not a Utf8 constant");
+        }
+        int length = readUnsignedShort(offset + 1);
+        return length == ATTRIBUTE_NAME.length
+                && Arrays.equals(data, offset + 3, offset + 3 + length, ATTRIBUTE_NAME, 0, length);
+    }
+
+    private TrackingData readTrackingData(int offset) {
+        int version = readByte(offset++);
+        if (version != ClassFileSourceAttribute.VERSION) {
+            throw new IllegalArgumentException("Unknown version " + version);
+        }
+        int[] position = { offset };
+        String gav = readString(position);
+        String source = readString(position);
+        Map<String, String> attributes = new HashMap<>();
+        int attributeCount = readInt(position[0]);
+        position[0] += 4;
+        for (int i = 0; i < attributeCount; ++i) {
+            String key = readString(position);
+            String val = readString(position);
+            attributes.put(key, val);
+        }
+        return new TrackingData(gav, source, attributes);
+    }
+
+    private String readString(int[] position) {
+        int length = readInt(position[0]);
+        position[0] += 4;
+        if (length <= 0) {
+            return null;
+        }
+        checkBounds(position[0], length);
+        String ret = new String(data, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return ret;
+    }
+
+    private int constantPoolOffset(int index) {
+        if (index <= 0 || index >= constantPoolOffsets.length || constantPoolOffsets[index] == 0) {
+            throw new IllegalArgumentException("Invalid constant pool index " + index);
+        }
+        return constantPoolOffsets[index];
+    }
+
+    private int readByte(int offset) {
+        checkBounds(offset, 1);
+        return data[offset] & 0xFF;
+    }
+
+    private int readUnsignedShort(int offset) {
+        checkBounds(offset, 2);
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private int readInt(int offset) {
+        checkBounds(offset, 4);
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private void checkBounds(int offset, int length) {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IllegalArgumentException("Truncated class file");
+        }
+    }
+}
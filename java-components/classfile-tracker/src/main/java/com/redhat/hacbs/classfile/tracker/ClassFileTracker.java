@@ -7,21 +7,27 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -31,6 +37,12 @@ public class ClassFileTracker {
 
     public static final Logger LOGGER = Logger.getLogger("dependency-analyser");
 
+    /**
+     * The maximum number of classes that can be waiting to be written when instrumenting in parallel, this bounds the
+     * amount of memory used for large jars.
+     */
+    static final int MAX_PENDING_CLASSES = 256;
+
     public static byte[] addTrackingDataToClass(byte[] classData, TrackingData data, String name, boolean overwrite) {
         try {
             ClassReader classReader = new ClassReader(classData);
@@ -64,6 +76,24 @@ public class ClassFileTracker {
 
     public static TrackingData readTrackingInformationFromClass(byte[] classData,
             BiConsumer<String, byte[]> untrackedClassesListener) {
+        TrackingData contents;
+        String className;
+        try {
+            ClassFileSourceScanner scanner = new ClassFileSourceScanner(classData);
+            contents = scanner.scan();
+            className = contents == null && untrackedClassesListener != null ? scanner.getClassName() : null;
+        } catch (RuntimeException e) {
+            //malformed class, let ASM deal with it
+            return readTrackingInformationFromClassWithAsm(classData, untrackedClassesListener);
+        }
+        if (contents == null && untrackedClassesListener != null) {
+            untrackedClassesListener.accept(className, classData);
+        }
+        return contents;
+    }
+
+    static TrackingData readTrackingInformationFromClassWithAsm(byte[] classData,
+            BiConsumer<String, byte[]> untrackedClassesListener) {
         ClassReader classReader = new ClassReader(classData);
         ClassTrackingReadDataVisitor classTrackingVisitor = new ClassTrackingReadDataVisitor(Opcodes.ASM9);
         classReader.accept(classTrackingVisitor, new Attribute[] { new ClassFileSourceAttribute(null) }, 0);
@@ -81,48 +111,133 @@ public class ClassFileTracker {
 
     public static void addTrackingDataToJar(InputStream input, TrackingData data, OutputStream out, boolean overwrite)
             throws IOException, ZipException {
+        //we need random access to the archive to copy the entries without recompressing them
+        try (input; SpillBuffer buffer = new SpillBuffer()) {
+            input.transferTo(buffer);
+            try (ZipFile zipFile = buffer.toZipFile()) {
+                addTrackingDataToJar(zipFile, data, out, overwrite, null);
+            }
+        }
+    }
+
+    public static void addTrackingDataToJar(Path input, TrackingData data, OutputStream out, boolean overwrite)
+            throws IOException {
+        addTrackingDataToJar(input, data, out, overwrite, null);
+    }
+
+    /**
+     * Adds the tracking data to a jar, instrumenting the classes in parallel on the given executor. The output is
+     * identical to the sequential version, as entries are still written in their original order.
+     *
+     * @param executor The executor to instrument classes on, or null to instrument them on the calling thread
+     */
+    public static void addTrackingDataToJar(Path input, TrackingData data, OutputStream out, boolean overwrite,
+            Executor executor) throws IOException {
+        try (ZipFile zipFile = ZipFile.builder().setPath(input).get()) {
+            addTrackingDataToJar(zipFile, data, out, overwrite, executor);
+        }
+    }
+
+    /**
+     * Adds the tracking data to every class in the jar. Only class files and nested jars are rewritten, all other entries
+     * are copied as is without being decompressed.
+     */
+    static void addTrackingDataToJar(ZipFile zipFile, TrackingData data, OutputStream out, boolean overwrite,
+            Executor executor) throws IOException {
+        try (ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(out)) {
+            writeTrackedJar(zipFile, data, zipOut, overwrite, executor);
+        }
+    }
+
+    private static void writeTrackedJar(ZipFile zipFile, TrackingData data, ZipArchiveOutputStream zipOut,
+            boolean overwrite, Executor executor) throws IOException {
         Set<String> seen = new HashSet<>();
-        try (ZipInputStream zipIn = new ZipInputStream(input)) {
-            try (ZipOutputStream zipOut = new ZipOutputStream(out)) {
-                var entry = zipIn.getNextEntry();
-                while (entry != null) {
-                    if (!seen.contains(entry.getName())) {
-                        seen.add(entry.getName());
-                        if (entry.getName().endsWith(".class")) {
-                            ZipEntry newEntry = new ZipEntry(entry.getName());
-                            if (entry.getLastAccessTime() != null) {
-                                newEntry.setLastAccessTime(entry.getLastAccessTime());
-                            }
-                            if (entry.getLastModifiedTime() != null) {
-                                newEntry.setLastModifiedTime(entry.getLastModifiedTime());
-                            }
-                            byte[] modified = addTrackingDataToClass(zipIn.readAllBytes(), data, entry.getName(), overwrite);
-                            newEntry.setSize(modified.length);
-                            zipOut.putNextEntry(newEntry);
-                            zipOut.write(modified);
-                        } else if (entry.getName().endsWith(".jar")) {
-                            ZipEntry newEntry = new ZipEntry(entry.getName());
-                            if (entry.getLastAccessTime() != null) {
-                                newEntry.setLastAccessTime(entry.getLastAccessTime());
-                            }
-                            if (entry.getLastModifiedTime() != null) {
-                                newEntry.setLastModifiedTime(entry.getLastModifiedTime());
-                            }
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            addTrackingDataToJar(new NoCloseInputStream(zipIn), data, baos, overwrite);
-                            byte[] modified = baos.toByteArray();
-                            newEntry.setSize(modified.length);
-                            zipOut.putNextEntry(newEntry);
-                            zipOut.write(modified);
-                        } else if (!isBlockOrSF(entry.getName())) {
-                            zipOut.putNextEntry(entry);
-                            zipOut.write(zipIn.readAllBytes());
-                        }
+        //classes that are being instrumented, they are written out in order once complete
+        Deque<PendingClass> pending = new ArrayDeque<>();
+        var entries = zipFile.getEntriesInPhysicalOrder();
+        while (entries.hasMoreElements()) {
+            var entry = entries.nextElement();
+            if (!seen.add(entry.getName())) {
+                continue;
+            }
+            if (entry.getName().endsWith(".class")) {
+                byte[] classData;
+                try (var in = zipFile.getInputStream(entry)) {
+                    classData = in.readAllBytes();
+                }
+                if (executor == null) {
+                    writeClass(zipOut, entry, addTrackingDataToClass(classData, data, entry.getName(), overwrite));
+                } else {
+                    pending.add(new PendingClass(entry, CompletableFuture.supplyAsync(
+                            () -> addTrackingDataToClass(classData, data, entry.getName(), overwrite), executor)));
+                    if (pending.size() > MAX_PENDING_CLASSES) {
+                        writePending(zipOut, pending.poll());
+                    }
+                }
+                continue;
+            }
+            while (!pending.isEmpty()) {
+                writePending(zipOut, pending.poll());
+            }
+            if (entry.getName().endsWith(".jar")) {
+                try (SpillBuffer nested = new SpillBuffer(); SpillBuffer modified = new SpillBuffer()) {
+                    try (var in = zipFile.getInputStream(entry)) {
+                        in.transferTo(nested);
+                    }
+                    try (ZipFile nestedZip = nested.toZipFile()) {
+                        ZipArchiveOutputStream nestedOut = new ZipArchiveOutputStream(modified);
+                        writeTrackedJar(nestedZip, data, nestedOut, overwrite, executor);
+                        nestedOut.finish();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to add tracking data to nested jar " + entry.getName(), e);
+                        zipOut.addRawArchiveEntry(entry, zipFile.getRawInputStream(entry));
+                        continue;
                     }
-                    entry = zipIn.getNextEntry();
+                    zipOut.putArchiveEntry(newEntry(entry, -1));
+                    modified.writeTo(zipOut);
+                    zipOut.closeArchiveEntry();
                 }
+            } else if (!isBlockOrSF(entry.getName())) {
+                zipOut.addRawArchiveEntry(entry, zipFile.getRawInputStream(entry));
             }
         }
+        while (!pending.isEmpty()) {
+            writePending(zipOut, pending.poll());
+        }
+    }
+
+    private static void writePending(ZipArchiveOutputStream zipOut, PendingClass pending) throws IOException {
+        byte[] modified;
+        try {
+            modified = pending.modified().join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to add tracking data to class: " + pending.entry().getName(), e.getCause());
+        }
+        writeClass(zipOut, pending.entry(), modified);
+    }
+
+    private static void writeClass(ZipArchiveOutputStream zipOut, ZipArchiveEntry entry, byte[] modified)
+            throws IOException {
+        zipOut.putArchiveEntry(newEntry(entry, modified.length));
+        zipOut.write(modified);
+        zipOut.closeArchiveEntry();
+    }
+
+    private record PendingClass(ZipArchiveEntry entry, CompletableFuture<byte[]> modified) {
+    }
+
+    private static ZipArchiveEntry newEntry(ZipArchiveEntry entry, long size) {
+        ZipArchiveEntry newEntry = new ZipArchiveEntry(entry.getName());
+        if (entry.getLastAccessTime() != null) {
+            newEntry.setLastAccessTime(entry.getLastAccessTime());
+        }
+        if (entry.getLastModifiedTime() != null) {
+            newEntry.setLastModifiedTime(entry.getLastModifiedTime());
+        }
+        if (size >= 0) {
+            newEntry.setSize(size);
+        }
+        return newEntry;
     }
 
     // same as the impl in sun.security.util.SignatureFileVerifier#isBlockOrSF()
@@ -0,0 +1,83 @@
+package com.redhat.hacbs.classfile.tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * A buffer that is held in memory until it grows past a threshold, at which point it is spilled to a temporary file.
+ * <p>
+ * This is used to hold nested jars, which need random access to be read as a {@link ZipFile}.
+ */
+class SpillBuffer extends OutputStream {
+
+    static final int DEFAULT_THRESHOLD = 10 * 1024 * 1024;
+
+    private final int threshold;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+
+    SpillBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    SpillBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (memory != null && memory.size() + len > threshold) {
+            file = Files.createTempFile("hacbs-spill", ".jar");
+            fileOut = Files.newOutputStream(file);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        if (memory != null) {
+            memory.write(b, off, len);
+        } else {
+            fileOut.write(b, off, len);
+        }
+    }
+
+    /**
+     * Opens the buffered data as a zip file. No more data can be written once this has been called.
+     */
+    ZipFile toZipFile() throws IOException {
+        if (memory != null) {
+            return ZipFile.builder().setByteArray(memory.toByteArray()).get();
+        }
+        fileOut.close();
+        return ZipFile.builder().setPath(file).get();
+    }
+
+    /**
+     * Copies the buffered data to the given stream. No more data can be written once this has been called.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (memory != null) {
+            memory.writeTo(out);
+        } else {
+            fileOut.close();
+            Files.copy(file, out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            fileOut.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.redhat.hacbs.classfile.tracker;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+public class ClassFileSourceScannerTestCase {
+
+    @Test
+    public void testFastPathMatchesAsm() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> classes = loadClasses(ClassReader.class, ZipFile.class, Test.class);
+        Assertions.assertFalse(classes.isEmpty());
+        for (var i = 0; i < classes.size(); ++i) {
+            byte[] classData = classes.get(i);
+            assertSameResult(classData);
+            if (i % 10 == 0) {
+                byte[] tracked = ClassFileTracker.addTrackingDataToClass(classData, randomData(random), "test", true);
+                assertSameResult(tracked);
+                //tracking data that has already been added is kept or replaced depending on the overwrite flag
+                assertSameResult(ClassFileTracker.addTrackingDataToClass(tracked, randomData(random), "test", false));
+                assertSameResult(ClassFileTracker.addTrackingDataToClass(tracked, randomData(random), "test", true));
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedInputFallsBack() throws Exception {
+        Random random = new Random(42);
+        byte[] thisClass = getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes();
+        byte[] tracked = ClassFileTracker.addTrackingDataToClass(thisClass, randomData(random), "test", true);
+        for (var i = 0; i < 100; ++i) {
+            byte[] truncated = Arrays.copyOf(tracked, random.nextInt(tracked.length));
+            Assertions.assertThrows(RuntimeException.class,
+                    () -> ClassFileTracker.readTrackingInformationFromClass(truncated, null));
+        }
+        for (var i = 0; i < 100; ++i) {
+            byte[] corrupted = tracked.clone();
+            corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt();
+            TrackingData expected;
+            try {
+                expected = ClassFileTracker.readTrackingInformationFromClassWithAsm(corrupted, null);
+            } catch (RuntimeException e) {
+                //the fast path does not look at method bodies, so it may accept classes that ASM rejects
+                continue;
+            }
+            Assertions.assertEquals(expected, ClassFileTracker.readTrackingInformationFromClass(corrupted, null));
+        }
+    }
+
+    static void assertSameResult(byte[] classData) {
+        AtomicReference<String> asmName = new AtomicReference<>();
+        AtomicReference<String> fastName = new AtomicReference<>();
+        TrackingData asm = ClassFileTracker.readTrackingInformationFromClassWithAsm(classData, (n, b) -> asmName.set(n));
+        TrackingData fast = ClassFileTracker.readTrackingInformationFromClass(classData, (n, b) -> fastName.set(n));
+        Assertions.assertEquals(asm, fast);
+        Assertions.assertEquals(asmName.get(), fastName.get());
+    }
+
+    static TrackingData randomData(Random random) {
+        Map<String, String> attributes = new HashMap<>();
+        int count = random.nextInt(4);
+        for (var i = 0; i < count; ++i) {
+            attributes.put(randomString(random), randomString(random));
+        }
+        return new TrackingData(randomString(random), randomString(random), attributes);
+    }
+
+    static String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = 1 + random.nextInt(20);
+        for (var i = 0; i < length; ++i) {
+            //include some non ASCII characters
+            sb.append(random.nextInt(10) == 0 ? (char) (0x100 + random.nextInt(0x1000)) : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    static List<byte[]> loadClasses(Class<?>... jarClasses) throws Exception {
+        List<byte[]> ret = new ArrayList<>();
+        for (var jarClass : jarClasses) {
+            Path jar = Path.of(jarClass.getProtectionDomain().getCodeSource().getLocation().toURI());
+            try (ZipFile zipFile = ZipFile.builder().setPath(jar).get()) {
+                var entries = zipFile.getEntries();
+                while (entries.hasMoreElements()) {
+                    var entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        try (var in = zipFile.getInputStream(entry)) {
+                            ret.add(in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -1,11 +1,20 @@
 package com.redhat.hacbs.classfile.tracker;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -41,4 +50,120 @@ public class ClassTrackingModificationTestCase {
         var results = ClassFileTracker.addTrackingDataToJar(out.toByteArray(), DATA, true);
         Assertions.assertEquals(Collections.singleton(DATA), ClassFileTracker.readTrackingDataFromJar(results, "test.jar"));
     }
+
+    @Test
+    public void testNestedJarTrackingAndRawCopy() throws Exception {
+        byte[] thisClass = getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes();
+        String className = getClass().getName().replace(".", "/") + ".class";
+        byte[] resource = "some resource that compresses well ".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream nestedOut = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(nestedOut)) {
+            zip.putNextEntry(new JarEntry(className));
+            zip.write(thisClass);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new JarEntry("META-INF/SIGNER.SF"));
+            zip.write("signature".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new JarEntry("META-INF/SIGNER.RSA"));
+            zip.write("signature".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new JarEntry("resource.txt"));
+            zip.write(resource);
+            JarEntry stored = new JarEntry("stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(resource.length);
+            CRC32 crc = new CRC32();
+            crc.update(resource);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(resource);
+            zip.putNextEntry(new JarEntry(className));
+            zip.write(thisClass);
+            zip.putNextEntry(new JarEntry("lib/nested.jar"));
+            zip.write(nestedOut.toByteArray());
+        }
+
+        var results = ClassFileTracker.addTrackingDataToJar(out.toByteArray(), DATA, true);
+        Assertions.assertEquals(Collections.singleton(DATA), ClassFileTracker.readTrackingDataFromJar(results, "test.jar"));
+
+        Path file = Files.createTempFile("tracked", ".jar");
+        try {
+            Files.write(file, out.toByteArray());
+            ByteArrayOutputStream fromPath = new ByteArrayOutputStream();
+            ClassFileTracker.addTrackingDataToJar(file, DATA, fromPath, true);
+            Assertions.assertArrayEquals(results, fromPath.toByteArray());
+        } finally {
+            Files.delete(file);
+        }
+
+        try (ZipFile original = ZipFile.builder().setByteArray(out.toByteArray()).get();
+                ZipFile zipFile = ZipFile.builder().setByteArray(results).get()) {
+            Assertions.assertNull(zipFile.getEntry("META-INF/SIGNER.SF"));
+            Assertions.assertNull(zipFile.getEntry("META-INF/SIGNER.RSA"));
+            for (var name : List.of("resource.txt", "stored.txt")) {
+                var entry = zipFile.getEntry(name);
+                Assertions.assertEquals(original.getEntry(name).getMethod(), entry.getMethod());
+                Assertions.assertEquals(original.getEntry(name).getCompressedSize(), entry.getCompressedSize());
+                try (var in = zipFile.getInputStream(entry)) {
+                    Assertions.assertArrayEquals(resource, in.readAllBytes());
+                }
+            }
+            try (var in = zipFile.getInputStream(zipFile.getEntry("lib/nested.jar"))) {
+                Assertions.assertEquals(Collections.singleton(DATA),
+                        ClassFileTracker.readTrackingDataFromJar(in.readAllBytes(), "nested.jar"));
+            }
+        }
+    }
+
+    @Test
+    public void testSpillBuffer() throws Exception {
+        byte[] data = "0123456789".repeat(10).getBytes(StandardCharsets.UTF_8);
+        try (SpillBuffer buffer = new SpillBuffer(64)) {
+            buffer.write(data, 0, 50);
+            buffer.write(data, 50, 50);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            buffer.writeTo(out);
+            Assertions.assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testParallelOutputMatchesSequential() throws Exception {
+        byte[] thisClass = getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes();
+        ByteArrayOutputStream nestedOut = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(nestedOut)) {
+            for (var i = 0; i < 10; ++i) {
+                zip.putNextEntry(new JarEntry("nested/Class" + i + ".class"));
+                zip.write(thisClass);
+            }
+        }
+        Path file = Files.createTempFile("tracked", ".jar");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+                for (var i = 0; i < ClassFileTracker.MAX_PENDING_CLASSES * 2; ++i) {
+                    zip.putNextEntry(new JarEntry("com/acme/Class" + i + ".class"));
+                    zip.write(thisClass);
+                    if (i % 100 == 0) {
+                        zip.putNextEntry(new JarEntry("com/acme/resource" + i + ".txt"));
+                        zip.write(("resource " + i).getBytes(StandardCharsets.UTF_8));
+                        zip.putNextEntry(new JarEntry("lib/nested" + i + ".jar"));
+                        zip.write(nestedOut.toByteArray());
+                    }
+                }
+            }
+            ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+            ClassFileTracker.addTrackingDataToJar(file, DATA, sequential, true);
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            ClassFileTracker.addTrackingDataToJar(file, DATA, parallel, true, executor);
+            Assertions.assertArrayEquals(sequential.toByteArray(), parallel.toByteArray());
+            Assertions.assertEquals(Collections.singleton(DATA),
+                    ClassFileTracker.readTrackingDataFromJar(parallel.toByteArray(), "test.jar"));
+        } finally {
+            executor.shutdownNow();
+            Files.delete(file);
+        }
+    }
 }
@@ -0,0 +1,93 @@
+package com.redhat.hacbs.common.images.ociclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+
+/**
+ * A stream that computes the SHA-256 digest of everything read through it, and fails with an IOException when the end
+ * of the stream is reached if it does not match the expected digest.
+ */
+class DigestVerifyingInputStream extends FilterInputStream {
+
+    private final DescriptorDigest expected;
+    private final MessageDigest digest;
+    private boolean verified;
+
+    DigestVerifyingInputStream(InputStream in, DescriptorDigest expected) {
+        super(in);
+        this.expected = expected;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            verify();
+        } else {
+            digest.update((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count == -1) {
+            verify();
+        } else {
+            digest.update(b, off, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        //skipped bytes still need to be part of the digest
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long remaining = n;
+        while (remaining > 0) {
+            int count = read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if (count == -1) {
+                break;
+            }
+            remaining -= count;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads the rest of the stream, so that the digest is verified even if the consumer did not need all the data.
+     */
+    void drain() throws IOException {
+        byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) != -1) {
+        }
+    }
+
+    private void verify() throws IOException {
+        if (verified) {
+            return;
+        }
+        String actual = HexFormat.of().formatHex(digest.digest());
+        if (!actual.equals(expected.getHash())) {
+            throw new IOException("Digest mismatch, expected " + expected + " but got sha256:" + actual);
+        }
+        verified = true;
+    }
+}
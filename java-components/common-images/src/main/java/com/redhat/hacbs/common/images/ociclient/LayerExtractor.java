@@ -0,0 +1,138 @@
+package com.redhat.hacbs.common.images.ociclient;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.jboss.logging.Logger;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.blob.Blob;
+
+/**
+ * Extracts a gzipped tar layer while it is being downloaded, rather than writing it to disk first.
+ * <p>
+ * Jib only writes blobs to an output stream, so the blob is written into a pipe on a separate thread, and read back
+ * through the digest check, gzip and tar on the calling thread. If anything fails, including the digest not matching,
+ * everything that was extracted is deleted again.
+ */
+class LayerExtractor {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger log = Logger.getLogger(LayerExtractor.class);
+
+    private static final AtomicInteger WRITER_COUNT = new AtomicInteger();
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "oci-layer-writer-" + WRITER_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path outputPath;
+    /**
+     * The files and directories created by the extraction, in the order they were created
+     */
+    private final List<Path> created = new ArrayList<>();
+
+    LayerExtractor(Path outputPath) {
+        this.outputPath = outputPath.normalize();
+    }
+
+    void extract(Blob blob, DescriptorDigest digest) throws IOException {
+        PipedInputStream pipe = new PipedInputStream(BUFFER_SIZE);
+        PipedOutputStream pipeOut = new PipedOutputStream(pipe);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try (pipeOut) {
+                blob.writeTo(pipeOut);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, WRITERS);
+        try (pipe) {
+            DigestVerifyingInputStream verifying = new DigestVerifyingInputStream(pipe, digest);
+            TarArchiveInputStream tar = new TarArchiveInputStream(new BufferedInputStream(
+                    new GzipCompressorInputStream(new BufferedInputStream(verifying, BUFFER_SIZE), true), BUFFER_SIZE));
+            for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+                extractEntry(entry, tar);
+            }
+            //the tar end marker may come before the end of the blob
+            verifying.drain();
+        } catch (IOException | RuntimeException e) {
+            //the pipe is closed, so if the writer is still running it will fail rather than block
+            try {
+                writer.join();
+            } catch (CompletionException ignored) {
+                //the reader failure is the one that is reported
+            }
+            rollback();
+            throw e;
+        }
+        try {
+            writer.join();
+        } catch (CompletionException e) {
+            rollback();
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void extractEntry(TarArchiveEntry entry, InputStream tar) throws IOException {
+        Path path = outputPath.resolve(entry.getName()).normalize();
+        if (!path.startsWith(outputPath)) {
+            throw new IOException("Layer entry " + entry.getName() + " is outside the output directory");
+        }
+        if (entry.isDirectory()) {
+            createDirectories(path);
+        } else {
+            createDirectories(path.getParent());
+            created.add(path);
+            byte[] data = new byte[BUFFER_SIZE];
+            int count;
+            try (OutputStream out = Files.newOutputStream(path)) {
+                while ((count = tar.read(data, 0, data.length)) != -1) {
+                    out.write(data, 0, count);
+                }
+            }
+        }
+    }
+
+    private void createDirectories(Path dir) throws IOException {
+        if (Files.isDirectory(dir)) {
+            return;
+        }
+        createDirectories(dir.getParent());
+        Files.createDirectory(dir);
+        created.add(dir);
+    }
+
+    private void rollback() {
+        for (int i = created.size() - 1; i >= 0; --i) {
+            try {
+                Files.deleteIfExists(created.get(i));
+            } catch (IOException e) {
+                log.errorf(e, "Failed to delete %s after a failed layer extraction", created.get(i));
+            }
+        }
+        created.clear();
+    }
+}
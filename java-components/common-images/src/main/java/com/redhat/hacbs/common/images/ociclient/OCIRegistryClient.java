@@ -1,22 +1,12 @@
 package com.redhat.hacbs.common.images.ociclient;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Base64;
 import java.util.Optional;
 import java.util.function.Consumer;
-import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.jboss.logging.Logger;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -25,8 +15,6 @@ import com.google.cloud.tools.jib.api.DescriptorDigest;
 import com.google.cloud.tools.jib.api.RegistryException;
 import com.google.cloud.tools.jib.api.RegistryUnauthorizedException;
 import com.google.cloud.tools.jib.blob.Blob;
-import com.google.cloud.tools.jib.event.EventHandlers;
-import com.google.cloud.tools.jib.http.FailoverHttpClient;
 import com.google.cloud.tools.jib.http.ResponseException;
 import com.google.cloud.tools.jib.image.json.BuildableManifestTemplate;
 import com.google.cloud.tools.jib.image.json.ManifestTemplate;
@@ -113,7 +101,10 @@ public class OCIRegistryClient {
 
     public Optional<LocalImage> pullImage(String tagOrDigest) {
         try {
-            RegistryClient registryClient = getRegistryClient();
+            RegistryClientPool.PooledClient pooledClient = RegistryClientPool.getInstance().get(registry,
+                    owner + "/" + repository, credential, enableHttpAndInsecureFailover);
+            RegistryClient registryClient = pooledClient.getRegistryClient();
+            int authGeneration = pooledClient.getAuthGeneration();
             try {
                 return Optional.of(pullInternal(tagOrDigest, registryClient));
             } catch (RegistryUnauthorizedException e) {
@@ -121,7 +112,8 @@ public class OCIRegistryClient {
                 //unfortunately we can't get the actual header
                 String wwwAuthenticate = "Bearer realm=\"https://" + registry + "/v2/auth\",service=\"" + registry
                         + "\",scope=\"repository:" + owner + "/" + repository + ":pull\"";
-                registryClient.authPullByWwwAuthenticate(wwwAuthenticate);
+                //the client is shared, so if another pull has already authenticated it we just retry
+                pooledClient.authenticate(authGeneration, c -> c.authPullByWwwAuthenticate(wwwAuthenticate));
                 return Optional.of(pullInternal(tagOrDigest, registryClient));
             }
         } catch (Exception ex) {
@@ -160,47 +152,6 @@ public class OCIRegistryClient {
         }
     }
 
-    private RegistryClient getRegistryClient() {
-        RegistryClient.Factory factory = RegistryClient.factory(new EventHandlers.Builder().build(), registry,
-                owner + "/" + repository,
-                new FailoverHttpClient(enableHttpAndInsecureFailover, enableHttpAndInsecureFailover,
-                        s -> log.info(s.getMessage())));
-
-        if (credential != null) {
-            factory.setCredential(credential);
-        }
-
-        return factory.newRegistryClient();
-    }
-
-    private void extractTarArchive(InputStream tarInput, String folder) throws IOException {
-        try (GZIPInputStream inputStream = new GZIPInputStream(tarInput);
-                TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(inputStream)) {
-
-            for (TarArchiveEntry entry = tarArchiveInputStream.getNextEntry(); entry != null; entry = tarArchiveInputStream
-                    .getNextEntry()) {
-                extractEntry(entry, tarArchiveInputStream, folder);
-            }
-        }
-    }
-
-    private void extractEntry(ArchiveEntry entry, InputStream tar, String folder) throws IOException {
-        final int bufferSize = 4096;
-        final String path = folder + File.separator + entry.getName();
-        if (entry.isDirectory()) {
-            new File(path).mkdirs();
-        } else {
-            int count;
-            byte[] data = new byte[bufferSize];
-            try (FileOutputStream os = new FileOutputStream(path);
-                    BufferedOutputStream dest = new BufferedOutputStream(os, bufferSize)) {
-                while ((count = tar.read(data, 0, bufferSize)) != -1) {
-                    dest.write(data, 0, count);
-                }
-            }
-        }
-    }
-
     /**
      * A local representation of a downloaded image.
      *
@@ -256,15 +207,8 @@ public class OCIRegistryClient {
             BuildableManifestTemplate.ContentDescriptorTemplate artifactsLayer = manifest.getLayers().get(layer);
 
             Blob blob = registryClient.pullBlob(artifactsLayer.getDigest(), blobSizeListener, writtenByteCountListener);
-
-            Path tarFile = Files.createFile(outputPath.resolve(digestHash + ".tar"));
-            try (OutputStream tarOutputStream = Files.newOutputStream(tarFile)) {
-                blob.writeTo(tarOutputStream);
-            }
-            try (InputStream tarInput = Files.newInputStream(tarFile)) {
-                extractTarArchive(tarInput, outputPath.toString());
-            }
-            tarFile.toFile().delete();
+            //extracted as it is downloaded, if the digest does not match nothing is left behind
+            new LayerExtractor(outputPath).extract(blob, artifactsLayer.getDigest());
         }
 
     }
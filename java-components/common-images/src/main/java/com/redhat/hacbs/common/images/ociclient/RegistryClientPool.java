@@ -0,0 +1,132 @@
+package com.redhat.hacbs.common.images.ociclient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.api.RegistryException;
+import com.google.cloud.tools.jib.event.EventHandlers;
+import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+
+/**
+ * A pool of Jib registry clients that is shared between callers, so that the token and the HTTP failover state are
+ * reused rather than negotiated again for every pull.
+ * <p>
+ * Clients are keyed by registry, repository, credential and whether insecure access is allowed. Once a client has a
+ * bearer token Jib refreshes it itself when the registry returns a 401. Jib's HTTP client holds on to every transport
+ * it creates until it is shut down, so clients are retired after a number of uses or once they are old enough, and a
+ * new one is created. Retired clients are not shut down as they may still be in use, they are just dropped from the
+ * pool.
+ */
+public class RegistryClientPool {
+
+    static final int MAX_USES = 1000;
+    static final long MAX_AGE = TimeUnit.MINUTES.toNanos(30);
+
+    private static final Logger log = Logger.getLogger(RegistryClientPool.class);
+
+    private static final RegistryClientPool INSTANCE = new RegistryClientPool();
+
+    private final ConcurrentHashMap<Key, PooledClient> clients = new ConcurrentHashMap<>();
+
+    public static RegistryClientPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a client for the given repository, creating one if there is no usable client in the pool.
+     *
+     * @param registry The registry host, including the port if required
+     * @param repository The repository, including the owner
+     * @param credential The credential, may be null
+     * @param insecure If HTTP and insecure HTTPS are allowed
+     */
+    public PooledClient get(String registry, String repository, Credential credential, boolean insecure) {
+        long now = System.nanoTime();
+        while (true) {
+            PooledClient client = clients.compute(new Key(registry, repository, credential, insecure),
+                    (k, existing) -> existing == null || existing.isRetired(now) ? create(k, now) : existing);
+            if (client.uses.incrementAndGet() <= MAX_USES) {
+                return client;
+            }
+            //used up by other callers while we were getting it, it will be replaced on the next attempt
+        }
+    }
+
+    private static PooledClient create(Key key, long now) {
+        if (key.insecure) {
+            System.setProperty("sendCredentialsOverHttp", "true");
+        }
+        RegistryClient.Factory factory = RegistryClient.factory(new EventHandlers.Builder().build(), key.registry,
+                key.repository,
+                new FailoverHttpClient(key.insecure, key.insecure, s -> log.info(s.getMessage())));
+        if (key.credential != null) {
+            factory.setCredential(key.credential);
+        }
+        log.debugf("Created registry client for %s/%s", key.registry, key.repository);
+        return new PooledClient(factory.newRegistryClient(), now);
+    }
+
+    /**
+     * A client from the pool.
+     */
+    public static class PooledClient {
+
+        private final RegistryClient registryClient;
+        private final long created;
+        private final AtomicInteger uses = new AtomicInteger();
+        private volatile int authGeneration;
+
+        PooledClient(RegistryClient registryClient, long created) {
+            this.registryClient = registryClient;
+            this.created = created;
+        }
+
+        public RegistryClient getRegistryClient() {
+            return registryClient;
+        }
+
+        /**
+         * Returns the number of times this client has been authenticated. This should be read before making a request,
+         * so that it can be passed to {@link #authenticate(int, Authentication)} if the request is rejected.
+         */
+        public int getAuthGeneration() {
+            return authGeneration;
+        }
+
+        /**
+         * Authenticates the client, unless another caller has already done so since the given generation was read.
+         * This means that when many requests are rejected at once only one of them gets a new token, and the others
+         * just use it.
+         */
+        public synchronized void authenticate(int generation, Authentication authentication) throws RegistryException {
+            if (authGeneration != generation) {
+                return;
+            }
+            authentication.authenticate(registryClient);
+            authGeneration++;
+        }
+
+        /**
+         * Authenticates the client if it has never been authenticated.
+         */
+        public void authenticateIfRequired(Authentication authentication) throws RegistryException {
+            authenticate(0, authentication);
+        }
+
+        boolean isRetired(long now) {
+            return uses.get() >= MAX_USES || now - created > MAX_AGE;
+        }
+    }
+
+    public interface Authentication {
+        void authenticate(RegistryClient registryClient) throws RegistryException;
+    }
+
+    private record Key(String registry, String repository, Credential credential, boolean insecure) {
+    }
+}